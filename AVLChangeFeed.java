@@ -0,0 +1,214 @@
+package src;
+
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ *
+ * AVLChangeFeed
+ *
+ * Bounded ring buffer of the inserts and deletes applied to an AVLTree, numbered by
+ * sequence from 0. The tree is the only writer; any number of consumers, on any threads,
+ * read it through their own cursors. The writer never waits: a consumer that falls more
+ * than capacity events behind finds its next event overwritten and must resync
+ * (e.g. from a full dump, or with AVLTree.diff) and seek past it.
+ *
+ */
+
+public class AVLChangeFeed {
+
+	public static final int INSERT = 0;
+	public static final int DELETE = 1;
+
+	private final int mask;
+	private final AtomicLongArray sequences;	// sequence of the event in every slot, -1 while it is being written
+	private final int[] types;
+	private final int[] keys;
+	private final int[] ends;
+	private final String[] infos;
+	private volatile long next;	// sequence of the next event, all smaller ones are published
+
+	/**
+	 * public AVLChangeFeed(int capacity)
+	 * <p>
+	 * Creates a feed keeping the last capacity events, rounded up to a power of 2.
+	 */
+	public AVLChangeFeed(int capacity) {
+		if (capacity < 1 || capacity > 1 << 30)
+			throw new IllegalArgumentException("capacity must be in [1, 2^30], got " + capacity);
+		int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+		this.mask = size - 1;
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++)
+			this.sequences.set(i, -1);
+		this.types = new int[size];
+		this.keys = new int[size];
+		this.ends = new int[size];
+		this.infos = new String[size];
+	}
+
+	/**
+	 * public long nextSequence()
+	 * <p>
+	 * Returns the sequence the next event will get, i.e. the number of events published so far.
+	 */
+	public long nextSequence() {
+		return this.next;
+	}
+
+	/**
+	 * public int capacity()
+	 * <p>
+	 * Returns the number of events kept.
+	 */
+	public int capacity() {
+		return this.mask + 1;
+	}
+
+	/**
+	 * public Consumer register()
+	 * <p>
+	 * Returns a new consumer whose first event is the next one to be published.
+	 */
+	public Consumer register() {
+		return new Consumer(this.next);
+	}
+
+	void publish(int type, int key, int end, String info) {	// called by the tree only, never concurrently. end is key unless an interval is inserted
+		long seq = this.next;
+		int i = (int) seq & this.mask;
+		this.sequences.set(i, -1);	// readers of the old event in this slot see it change
+		VarHandle.releaseFence();	// ... before any of its fields do
+		this.types[i] = type;
+		this.keys[i] = key;
+		this.ends[i] = end;
+		this.infos[i] = info;
+		this.sequences.setRelease(i, seq);
+		this.next = seq + 1;
+	}
+
+	/**
+	 * public static class Change
+	 *
+	 * One insert or delete. info is null for deletes.
+	 * end is the end of an inserted interval, and the key for everything else.
+	 */
+	public static class Change {
+
+		private final long sequence;
+		private final int type;
+		private final int key;
+		private final int end;
+		private final String info;
+
+		public Change(long sequence, int type, int key, String info) {
+			this(sequence, type, key, key, info);
+		}
+
+		public Change(long sequence, int type, int key, int end, String info) {
+			this.sequence = sequence;
+			this.type = type;
+			this.key = key;
+			this.end = end;
+			this.info = info;
+		}
+
+		public long getSequence() {
+			return this.sequence;
+		}
+		public int getType() {
+			return this.type;
+		}
+		public int getKey() {
+			return this.key;
+		}
+		public int getEnd() {
+			return this.end;
+		}
+		public String getInfo() {
+			return this.info;
+		}
+
+		/**
+		 * public void applyTo(AVLTree t)
+		 * <p>
+		 * Replays the change on t: inserts key with info, or deletes key.
+		 * An interval [key, end] with end > key can only be replayed on an interval tree.
+		 */
+		public void applyTo(AVLTree t) {
+			if (this.type == INSERT && this.end != this.key)
+				t.insert(this.key, this.end, this.info);
+			else if (this.type == INSERT)
+				t.insert(this.key, this.info);
+			else
+				t.delete(this.key);
+		}
+
+		@Override
+		public String toString() {
+			String interval = this.end == this.key ? "" : "-" + this.end;
+			return this.sequence + ": " + (this.type == INSERT ? "insert " + this.key + interval + " " + this.info : "delete " + this.key);
+		}
+	}
+
+	/**
+	 * public class Consumer
+	 *
+	 * A cursor over the feed. A consumer must be used by one thread at a time.
+	 */
+	public class Consumer {
+
+		private long cursor;	// sequence of the next event to return
+
+		private Consumer(long cursor) {
+			this.cursor = cursor;
+		}
+
+		/**
+		 * public long position()
+		 * <p>
+		 * Returns the sequence of the next event poll() returns.
+		 */
+		public long position() {
+			return this.cursor;
+		}
+
+		/**
+		 * public Change poll()
+		 * <p>
+		 * Returns the next event and moves past it, or null if it is not published yet.
+		 * Throws IllegalStateException if the event was already overwritten; the cursor stays on it.
+		 */
+		public Change poll() {
+			AVLChangeFeed feed = AVLChangeFeed.this;
+			long seq = this.cursor;
+			if (seq >= feed.next)
+				return null;
+			int i = (int) seq & feed.mask;
+			if (feed.sequences.getAcquire(i) == seq) {	// seqlock read: the slot holds seq before and after reading its fields
+				int type = feed.types[i];
+				int key = feed.keys[i];
+				int end = feed.ends[i];
+				String info = feed.infos[i];
+				VarHandle.acquireFence();
+				if (feed.sequences.get(i) == seq) {
+					this.cursor++;
+					return new Change(seq, type, key, end, info);
+				}
+			}
+			throw new IllegalStateException("event " + seq + " was overwritten, the feed is at " + feed.next
+					+ " and keeps " + feed.capacity() + " events");
+		}
+
+		/**
+		 * public void seek(long sequence)
+		 * <p>
+		 * Moves the cursor to the given sequence, e.g. after a resync up to sequence - 1.
+		 */
+		public void seek(long sequence) {
+			if (sequence < 0)
+				throw new IllegalArgumentException("negative sequence " + sequence);
+			this.cursor = sequence;
+		}
+	}
+}
@@ -1,20 +1,117 @@
 package src;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
 /**
  *
  * AVLTree
  *
  * An implementation of a AVL Tree with
  * distinct integer keys and info.
+ * insert, delete, split, join and the exports to arrays emit an
+ * AVLTreeOperationEvent to Java Flight Recorder when they are slow.
  *
  */
 
-public class AVLTree {
+public class AVLTree implements IAVLTree<AVLTree> {
 
 	private IAVLNode root;
+	private long rotations;	// number of single rotations done by this tree
+	private final boolean compact;	// nodes are CompactAVLNode and ExternalLeaf instead of AVLNode
+	private final AVLValueStore values;	// if not null, nodes hold ids of their info in this store
+	private final boolean interval;	// nodes are IntervalAVLNode, keyed by interval start
+	private AVLChangeFeed feed;	// if not null, gets every insert and delete
+	private boolean mayShare;	// some nodes may be shared with other trees, so updates must copy (or take back) them first
+
+	private static final VarHandle HOLDERS = holdersHandle();	// AVLNode.holders, counted atomically as forks may run on other threads
 
 	public AVLTree() {	// constructor - create new empty AVLTree as external node + minimum and maximum are null
-		this.root = new AVLNode(-1, null, null, null, null, -1, false);
+		this(false);
+	}
+
+	/**
+	 * public AVLTree(boolean compact)
+	 * <p>
+	 * Creates an empty tree. If compact, nodes drop the fields that can be derived
+	 * (cached min/max, isRealNode) and external leaves only hold their parent,
+	 * which takes about half the memory per entry, see memoryFootprint().
+	 * min() and max() then walk to the edge of the tree in O(log n) instead of O(1).
+	 */
+	public AVLTree(boolean compact) {
+		this(compact, null);
+	}
+
+	/**
+	 * public AVLTree(boolean compact, AVLValueStore values)
+	 * <p>
+	 * Creates an empty tree whose nodes keep the info in the given store, as an int id,
+	 * instead of a String reference. Repeated info is stored once, and search, min, max and
+	 * infoToArray decode it to a new String when read. values may be shared with other trees.
+	 */
+	public AVLTree(boolean compact, AVLValueStore values) {
+		this(compact, values, false);
+	}
+
+	private AVLTree(boolean compact, AVLValueStore values, boolean interval) {
+		this.compact = compact;
+		this.values = values;
+		this.interval = interval;
+		this.root = this.newExternalLeaf(null);
+	}
+
+	/**
+	 * public static AVLTree intervalTree()
+	 * <p>
+	 * Creates an empty interval tree: every item is a closed interval [start, end] keyed by its start,
+	 * and every node also keeps the largest end in its subtree, for overlapping() and stabbing().
+	 * Starts are distinct, as all keys. Interval trees use the default node layout and plain info.
+	 */
+	public static AVLTree intervalTree() {
+		return new AVLTree(false, null, true);
+	}
+
+	/**
+	 * public AVLTree(int[] keys, String[] info)
+	 * <p>
+	 * Creates a tree holding keys[j] with info[j] for every j, in O(n).
+	 * keys must be strictly increasing and as long as info, otherwise throws IllegalArgumentException.
+	 */
+	public AVLTree(int[] keys, String[] info) {
+		this(false, null, keys, info);
+	}
+
+	/**
+	 * public AVLTree(boolean compact, AVLValueStore values, int[] keys, String[] info)
+	 * <p>
+	 * Creates a tree with the given layout and value store holding keys[j] with info[j] for every j, in O(n).
+	 * The tree is as balanced as possible: every node is the median of its range.
+	 * Ranges longer than BulkBuild.THRESHOLD are built in parallel, unless values are encoded
+	 * (the store is not thread safe). keys must be strictly increasing and as long as info,
+	 * otherwise throws IllegalArgumentException.
+	 */
+	public AVLTree(boolean compact, AVLValueStore values, int[] keys, String[] info) {
+		this(compact, values, false);
+		if (keys.length != info.length)
+			throw new IllegalArgumentException(keys.length + " keys but " + info.length + " info");
+		for (int j = 1; j < keys.length; j++) {
+			if (keys[j - 1] >= keys[j])
+				throw new IllegalArgumentException("keys are not strictly increasing at index " + j + ": " + keys[j - 1] + ", " + keys[j]);
+		}
+		if (keys.length == 0)
+			return;
+		BulkBuild build = new BulkBuild(keys, info, 0, keys.length);
+		this.root = values == null ? build.invoke() : build.buildSequential(0, keys.length);
 	}
 
 
@@ -44,6 +141,100 @@ public class AVLTree {
 	}
 
 
+	/**
+	 * public String[] searchAll(int[] keys)
+	 * <p>
+	 * Returns an array whose i'th element is search(keys[i]).
+	 * The keys are sorted once and resolved in one traversal: every node is visited at most once,
+	 * with the range of probes that pass through it, so shared prefixes of the search paths are walked once.
+	 */
+	public String[] searchAll(int[] keys) {
+		String[] values = new String[keys.length];
+		if (keys.length == 0 || this.empty())
+			return values;
+		long[] probes = new long[keys.length];	// key in the high 32 bits and index in the low 32, so one sort orders both
+		for (int i = 0; i < keys.length; i++)
+			probes[i] = ((long) keys[i] << 32) | i;
+		Arrays.sort(probes);
+		this.searchAll(this.root, probes, 0, probes.length, values);
+		return values;
+	}
+
+	private void searchAll(IAVLNode x, long[] probes, int from, int to, String[] values) {	// resolve the sorted probes[from, to) in the subtree of x
+		while (from < to && x.isRealNode()) {
+			int k = x.getKey();
+			int lo = from;	// first probe with key >= k
+			int hi = to;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if ((int) (probes[mid] >> 32) < k)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			hi = lo;	// probes[lo, hi) are equal to k
+			while (hi < to && (int) (probes[hi] >> 32) == k) {
+				values[(int) probes[hi]] = x.getValue();
+				hi++;
+			}
+			if (lo - from < to - hi) {	// recurse on the side with fewer probes, loop on the other
+				this.searchAll(x.getLeft(), probes, from, lo, values);
+				x = x.getRight();
+				from = hi;
+			} else {
+				this.searchAll(x.getRight(), probes, hi, to, values);
+				x = x.getLeft();
+				to = lo;
+			}
+		}
+	}
+
+	/**
+	 * public List<IntervalAVLNode> overlapping(int lo, int hi)
+	 * <p>
+	 * Returns the intervals of an interval tree that overlap [lo, hi], i.e. start <= hi and end >= lo, sorted by start.
+	 * Subtrees starting after hi, or whose largest end is before lo, are not entered, so the walk visits
+	 * O(log n) nodes plus the paths to the k results: O(log n + k) when the results are adjacent in start
+	 * order, and at most O(k log n).
+	 */
+	public List<IntervalAVLNode> overlapping(int lo, int hi) {
+		if (!this.interval)
+			throw new IllegalStateException("not an interval tree");
+		List<IntervalAVLNode> found = new ArrayList<>();
+		if (lo <= hi)
+			this.overlapping(this.root, lo, hi, found);
+		return found;
+	}
+
+	/**
+	 * public List<IntervalAVLNode> stabbing(int t)
+	 * <p>
+	 * Returns the intervals of an interval tree that contain t, sorted by start.
+	 */
+	public List<IntervalAVLNode> stabbing(int t) {
+		return this.overlapping(t, t);
+	}
+
+	private static int end(IAVLNode x) {	// end of the interval of a real node, its key if it is not an interval node
+		return x instanceof IntervalAVLNode ? ((IntervalAVLNode) x).getEnd() : x.getKey();
+	}
+
+	private static int maxEnd(IAVLNode x) {	// largest end in the subtree of x, Integer.MIN_VALUE if x is external
+		return x.isRealNode() ? ((IntervalAVLNode) x).getMaxEnd() : Integer.MIN_VALUE;
+	}
+
+	private void overlapping(IAVLNode x, int lo, int hi, List<IntervalAVLNode> found) {	// in-order walk of the subtree of x, pruned by key and max end
+		while (x.isRealNode() && maxEnd(x) >= lo) {
+			IntervalAVLNode node = (IntervalAVLNode) x;
+			this.overlapping(node.getLeft(), lo, hi, found);
+			if (node.getKey() > hi)	// and so are all starts to the right
+				return;
+			if (node.getEnd() >= lo)
+				found.add(node);
+			x = node.getRight();
+		}
+	}
+
 	/**
 	 * public int insert(int k, String i)
 	 * <p>
@@ -54,23 +245,45 @@ public class AVLTree {
 	 * Returns -1 if an item with key k already exists in the tree.
 	 */
 	public int insert(int k, String i) {
+		return this.insertTraced(k, k, i);	// in an interval tree, the interval [k, k]
+	}
+
+	/**
+	 * public int insert(int start, int end, String i)
+	 * <p>
+	 * Inserts the interval [start, end] with info i to an interval tree, keyed by start.
+	 * Returns as insert(k, i), and -1 if an interval with this start already exists.
+	 */
+	public int insert(int start, int end, String i) {
+		if (!this.interval)
+			throw new IllegalStateException("not an interval tree");
+		if (end < start)
+			throw new IllegalArgumentException("interval [" + start + ", " + end + "] ends before it starts");
+		return this.insertTraced(start, end, i);
+	}
+
+	private int insertTraced(int k, int end, String i) {	// insert, with its event and feed entry
+		AVLTreeOperationEvent event = new AVLTreeOperationEvent();
+		event.begin();
+		int size = this.root.getSize(), height = this.root.getHeight();
+		long rotations = this.rotations;
+		int ret = this.insertItem(k, end, i);
+		if (ret != -1 && this.feed != null)
+			this.feed.publish(AVLChangeFeed.INSERT, k, end, i);
+		event.commit("insert", k, size, height, this.rotations - rotations);
+		return ret;
+	}
+
+	private int insertItem(int k, int end, String i) {
 		if (this.empty()) {		// if empty, set the root real node with given key-value 
-			IAVLNode leftExternalLeaf = new AVLNode(-1, null, null, null, null, -1, false);
-			IAVLNode rightExternalLeaf = new AVLNode(-1, null, null, null, null, -1, false);
-			this.root = new AVLNode(k, i, leftExternalLeaf, rightExternalLeaf, null, 0, true);
-			leftExternalLeaf.setParent(this.root);
-			rightExternalLeaf.setParent(this.root);
+			this.root = this.newNode(k, end, i, null);
 			return 0;
 		}
-		IAVLNode x = lastVisitNodeSearch(k);	// get last node in path for node with key k - if real, return -1
+		IAVLNode x = this.ownPath(k, false);	// get last node in path for node with key k - if real, return -1
 		if (x.isRealNode()) {
 			return -1;
 		}	// create and connect new node in correct place and rebalance
-		IAVLNode leftExternalLeaf = new AVLNode(-1, null, null, null, null, -1, false);
-		IAVLNode rightExternalLeaf = new AVLNode(-1, null, null, null, null, -1, false);
-		IAVLNode son = new AVLNode(k, i, leftExternalLeaf, rightExternalLeaf, x.getParent(), 0, true);
-		leftExternalLeaf.setParent(son);
-		rightExternalLeaf.setParent(son);
+		IAVLNode son = this.newNode(k, end, i, x.getParent());
 		return setSonAndRebalance(x.getParent(), son);
 	}
 
@@ -84,11 +297,25 @@ public class AVLTree {
 	 * Returns -1 if an item with key k was not found in the tree.
 	 */
 	public int delete(int k) {
-		IAVLNode x = lastVisitNodeSearch(k);
+		AVLTreeOperationEvent event = new AVLTreeOperationEvent();
+		event.begin();
+		int size = this.root.getSize(), height = this.root.getHeight();
+		long rotations = this.rotations;
+		int ret = this.deleteItem(k);
+		if (ret != -1 && this.feed != null)
+			this.feed.publish(AVLChangeFeed.DELETE, k, k, null);
+		event.commit("delete", k, size, height, this.rotations - rotations);
+		return ret;
+	}
+
+	private int deleteItem(int k) {
+		IAVLNode x = this.ownPath(k, true);
 		if (!x.isRealNode()) {
 			return -1;
 		}
-		return deleteRebalance(x);
+		int ret = deleteRebalance(x);
+		this.releaseValue(x);
+		return ret;
 	}
 
 		/**
@@ -101,6 +328,91 @@ public class AVLTree {
 	   return this.root.getSize();
    }
    
+   /**
+    * public long getRotationCount()
+    *
+    * Returns the number of single rotations done by this tree so far (a double-rotation counts as 2).
+    */
+   public long getRotationCount()
+   {
+	   return this.rotations;
+   }
+
+   /**
+    * public void setChangeFeed(AVLChangeFeed feed)
+    *
+    * Publishes every later successful insert and delete, and every item added by join, to feed.
+    * null stops publishing. The trees returned by split have no feed.
+    */
+   public void setChangeFeed(AVLChangeFeed feed)
+   {
+	   this.feed = feed;
+   }
+
+   /**
+    * public AVLChangeFeed getChangeFeed()
+    *
+    * Returns the feed of this tree, or null if it has none.
+    */
+   public AVLChangeFeed getChangeFeed()
+   {
+	   return this.feed;
+   }
+
+   /**
+    * public AVLTree fork()
+    *
+    * Returns an independent copy of the tree in O(1). Both trees share all nodes. Every node counts its holders,
+    * the parents and tree roots referencing it, and a node with more than one holder is never changed:
+    * insert, delete, split and join in either tree copy such nodes on the paths they change, so each tree
+    * uses memory for its own changes only (O(log n) nodes per change). A copy holds the sons of the original,
+    * which has one holder less, and a node that is left with a single holder is taken back in place by the
+    * tree that meets it, instead of being copied. An update that fails (insert of an existing key, delete of
+    * a missing one) copies nothing. The fork keeps the value store of the tree but not its change feed.
+    * A shared node is reachable from several parents, so its parent pointer may be another tree's: the trees only
+    * follow parent pointers of nodes they own, i.e. nodes that were not shared since they were last met.
+    * A node held by 65535 parents or trees at once stays shared for good.
+    * Throws UnsupportedOperationException for the compact layout, whose nodes have no room for the count.
+    */
+   public AVLTree fork()
+   {
+	   if (this.compact)
+		   throw new UnsupportedOperationException("fork needs the default node layout");
+	   AVLTree fork = new AVLTree(false, this.values, this.interval);
+	   if (this.empty())
+		   return fork;
+	   ((AVLNode) this.root).hold();
+	   fork.root = this.root;
+	   fork.mayShare = true;
+	   this.mayShare = true;
+	   return fork;
+   }
+
+   /**
+    * public void release()
+    *
+    * Declares that the tree will not be used again, e.g. a fork that is dropped, and empties it.
+    * Its root loses a holder, and so on down: a node nobody holds any more is freed, its value id is
+    * released from the value store and its sons lose a holder. Nodes that other trees still hold stay
+    * theirs, and the last tree holding a node takes it back instead of copying it.
+    * Nothing is published to the change feed.
+    */
+   public void release()
+   {
+	   if (this.mayShare || this.values != null)
+		   this.drop(this.root);
+	   this.mayShare = false;
+	   this.root = this.newExternalLeaf(null);
+   }
+
+   private void drop(IAVLNode x) {	// a reference to x is gone: once nobody holds x, its value id is released and its sons lose a holder
+	   if (!x.isRealNode() || (x instanceof AVLNode && !((AVLNode) x).unhold()))
+		   return;
+	   this.releaseValue(x);
+	   this.drop(x.getLeft());
+	   this.drop(x.getRight());
+   }
+
    /**
     * public int getRoot()
     *
@@ -110,27 +422,94 @@ public class AVLTree {
    {
 	   return this.root;
    }
+
+   /**
+    * public MemoryFootprint memoryFootprint()
+    *
+    * Returns the estimated heap bytes used by the tree, split to real nodes, external leaves and info strings.
+    * Object sizes come from a model of 64-bit HotSpot with compressed oops (12 byte headers, 4 byte references,
+    * 8 byte alignment) and compact strings. An info string referenced by several nodes is counted once.
+    * If the tree keeps info in an AVLValueStore, the info bytes are those of the whole store.
+    * Per entry, excluding info: 112 bytes for the default layout (AVLNode 56, plus about one AVLNode leaf 56),
+    * 56 bytes for the compact layout (CompactAVLNode 40, plus about one ExternalLeaf 16).
+    */
+   public MemoryFootprint memoryFootprint()
+   {
+	   MemoryFootprint f = new MemoryFootprint();
+	   this.measure(this.root, f, Collections.newSetFromMap(new IdentityHashMap<>()));
+	   if (this.values != null)
+		   f.valueBytes += this.values.memoryBytes();
+	   return f;
+   }
+
+   private void measure(IAVLNode x, MemoryFootprint f, Set<String> seen) {	// adds the subtree of x to f
+	   if (!x.isRealNode()) {
+		   f.externalLeaves++;
+		   f.externalLeafBytes += x instanceof ExternalLeaf ? ExternalLeaf.BYTES : AVLNode.BYTES;
+		   return;
+	   }
+	   f.realNodes++;
+	   if (x instanceof IntervalAVLNode) {
+		   f.realNodeBytes += IntervalAVLNode.BYTES;
+		   String value = x.getValue();
+		   if (value != null && seen.add(value))
+			   f.valueBytes += stringBytes(value);
+	   } else if (x instanceof EncodedCompactAVLNode) {	// info is counted with the store
+		   f.realNodeBytes += EncodedCompactAVLNode.BYTES;
+	   } else if (x instanceof EncodedAVLNode) {
+		   f.realNodeBytes += EncodedAVLNode.BYTES;
+	   } else {
+		   f.realNodeBytes += x instanceof CompactAVLNode ? CompactAVLNode.BYTES : AVLNode.BYTES;
+		   String value = x.getValue();
+		   if (value != null && seen.add(value))
+			   f.valueBytes += stringBytes(value);
+	   }
+	   this.measure(x.getLeft(), f, seen);
+	   this.measure(x.getRight(), f, seen);
+   }
+
+   private static long stringBytes(String s) {	// String object (24) + its byte[] (16 + length, or 2*length if not Latin-1)
+	   boolean latin1 = true;
+	   for (int i = 0; i < s.length() && latin1; i++)
+		   latin1 = s.charAt(i) <= 0xFF;
+	   long array = 16 + (latin1 ? s.length() : 2L * s.length());
+	   return 24 + ((array + 7) & ~7L);
+   }
    
    /**
     * public AVLTree[] split(int x)
     *
     * splits the tree into 2 trees according to the key x. 
     * Returns an array [t1, t2] with two AVL trees. keys(t1) < x < keys(t2).
+	* The nodes move to t1 and t2, and the tree is left empty.
+	* The item with key x is in neither tree, so in a tree with a value store its value id is released.
     * 
 	* precondition: search(x) != null (i.e. you can also assume that the tree is not empty)
     * postcondition: none
     */   
    public AVLTree[] split(int x)
    {
-	   IAVLNode node = lastVisitNodeSearch(x);	// get node with key x
-	   AVLTree t1 = new AVLTree();	// create first AVLTree - smaller then x
+	   AVLTreeOperationEvent event = new AVLTreeOperationEvent();
+	   event.begin();
+	   int size = this.root.getSize(), height = this.root.getHeight();
+	   AVLTree[] lst = this.splitAt(x);
+	   this.mayShare = false;
+	   this.root = this.newExternalLeaf(null);
+	   event.commit("split", x, size, height, lst[0].rotations + lst[1].rotations);	// the halves are new trees, all rotations are theirs
+	   return lst;
+   }
+
+   private AVLTree[] splitAt(int x) {	// split without an event of its own or of the joins on the path
+	   IAVLNode node = this.ownPath(x, true);	// get node with key x
+	   this.releaseValue(node);	// x leaves the tree for good, only its sons go on
+	   AVLTree t1 = this.part();	// create first AVLTree - smaller then x
 	   t1.root = node.getLeft();
 	   t1.root.setParent(null);
-	   AVLTree addt1 = new AVLTree();	// helper tree for smaller values
-	   AVLTree t2 = new AVLTree();	// create second AVLTree - greater then x
+	   AVLTree addt1 = this.part();	// helper tree for smaller values
+	   AVLTree t2 = this.part();	// create second AVLTree - greater then x
 	   t2.root = node.getRight();
 	   t2.root.setParent(null);
-	   AVLTree addt2 = new AVLTree();	// helper tree for greater values
+	   AVLTree addt2 = this.part();	// helper tree for greater values
 	   IAVLNode y = node.getParent();
 	   IAVLNode t = y;
 	   while (y != null){	// while y not null - path from node to root
@@ -139,13 +518,13 @@ public class AVLTree {
 			   node = y;
 			   addt2.root = y.getRight();
 			   addt2.root.setParent(null);
-			   t2.join(y, addt2);
+			   t2.joinWith(y, addt2);
 		   }
 		   else {	// if current node is right son of father, Join t1 and y.getLeft()
 			   node = y;
 			   addt1.root = y.getLeft();
 			   addt1.root.setParent(null);
-			   t1.join(y, addt1);
+			   t1.joinWith(y, addt1);
 		   }
 		   y = t;
 	    }
@@ -156,26 +535,66 @@ public class AVLTree {
 
 	   return lst;
    }
-   
 
-   
+   private AVLTree part() {	// an empty tree for a part of this: same layout and value store, and it may share what this may
+	   AVLTree t = new AVLTree(this.compact, this.values, this.interval);
+	   t.mayShare = this.mayShare;
+	   return t;
+   }
+
    /**
     * public int join(IAVLNode x, AVLTree t)
     *
     * joins t and x with the tree. 	
     * Returns the complexity of the operation (|tree.rank - t.rank| + 1).
+	* The nodes of t move to the tree, and t is left empty.
 	*
 	* precondition: keys(t) < x < keys() or keys(t) > x > keys(). t/tree might be empty (rank = -1).
+	* In an interval tree, x must be an IntervalAVLNode, and t must be an interval tree too.
     * postcondition: none
     */   
    public int join(IAVLNode x, AVLTree t)
    {
+	   if (this.interval && !(x instanceof IntervalAVLNode))
+		   throw new IllegalArgumentException("an interval tree can only join an IntervalAVLNode");
+	   if (t.interval != this.interval)
+		   throw new IllegalArgumentException("cannot join an interval tree with a tree that is not one");
+	   AVLTreeOperationEvent event = new AVLTreeOperationEvent();
+	   event.begin();
+	   int size = this.root.getSize(), height = this.root.getHeight();
+	   long rotations = this.rotations;
+	   if (this.feed != null) {	// x and every item of t are inserted into this
+		   this.feed.publish(AVLChangeFeed.INSERT, x.getKey(), end(x), x.getValue());
+		   for (IAVLNode node : t.keySortedNodesArr())
+			   this.feed.publish(AVLChangeFeed.INSERT, node.getKey(), end(node), node.getValue());
+	   }
+	   int ret = this.joinWith(x, t);
+	   if (t != this) {
+		   t.mayShare = false;
+		   t.root = t.newExternalLeaf(null);
+	   }
+	   event.commit("join", x.getKey(), size, height, this.rotations - rotations);
+	   return ret;
+   }
+
+   private int joinWith(IAVLNode x, AVLTree t) {	// the rotations are counted on this, even those run by t when t is the higher tree
+	   long tRotations = t.rotations;
+	   int ret = this.joinTrees(x, t);
+	   this.rotations += t.rotations - tRotations;
+	   t.rotations = tRotations;
+	   return ret;
+   }
+
+   private int joinTrees(IAVLNode x, AVLTree t) {
+	   this.mayShare |= t.mayShare;
 	   if(t.empty() && this.empty()) {		// if both trees empty, make x the root
 		   this.root = x;
-		   this.root.setLeft(new AVLNode(-1, null, null, null, this.root, -1, false));
-		   this.root.setRight(new AVLNode(-1, null, null, null, this.root, -1, false));
+		   this.root.setParent(null);
+		   this.root.setLeft(this.newExternalLeaf(this.root));
+		   this.root.setRight(this.newExternalLeaf(this.root));
 		   this.root.updateMax();
 		   this.root.updateMin();
+		   this.root.setHeight(0);
 		   this.root.setSize(1);
 		   return 1;
 	   }
@@ -198,15 +617,17 @@ public class AVLTree {
     * precondition: keys(t1) < x < keys(t2)
     * */
    private int join(IAVLNode x, AVLTree t1, AVLTree t2) {
-	   IAVLNode leftExternalLeaf = new AVLNode(-1, null, null, null, x, -1, false);
-	   IAVLNode rightExternalLeaf = new AVLNode(-1, null, null, null, x, -1, false);
+	   IAVLNode leftExternalLeaf = this.newExternalLeaf(x);
+	   IAVLNode rightExternalLeaf = this.newExternalLeaf(x);
 	   if(t1.empty()) {		// add x as minimum of t2
 		   x.setHeight(0);
 		   int ret = t2.getRoot().getHeight() + 1;
 		   x.setSize(1);
 		   x.setLeft(leftExternalLeaf);
 		   x.setRight(rightExternalLeaf);
-		   t2.setSonAndRebalance(t2.root.getMin(), x);
+		   x.updateMax();
+		   x.updateMin();
+		   t2.setSonAndRebalance(t2.ownEdge(true), x);
 		   this.root = t2.getRoot();
 		   this.root.updateMax();
 		   this.root.updateMin();
@@ -218,7 +639,9 @@ public class AVLTree {
 		   x.setSize(1);
 		   x.setLeft(leftExternalLeaf);
 		   x.setRight(rightExternalLeaf);
-		   t1.setSonAndRebalance(t1.root.getMax(), x);
+		   x.updateMax();
+		   x.updateMin();
+		   t1.setSonAndRebalance(t1.ownEdge(false), x);
 		   this.root = t1.getRoot();
 		   this.root.updateMax();
 		   this.root.updateMin();
@@ -227,12 +650,14 @@ public class AVLTree {
 	   int ret = Math.abs(t1.getRoot().getHeight() - t2.getRoot().getHeight()) + 1;
 	   if(t2.getRoot().getHeight() >= t1.getRoot().getHeight()) {	// case t2 is higher
 		   IAVLNode r = t2.getRoot();	// get first node in t2 s.t height of node <= height of t1 
+		   IAVLNode p = null;	// parent of r, owned by t2 as x is linked to it
 		   while(r.getHeight() > t1.getRoot().getHeight()) {
-			   r = r.getLeft();
+			   p = t2.ownSon(p, r);
+			   r = p.getLeft();
 		   }
-		   x.setParent(r.getParent());	// set x as r, t1 parent and x as son of r.getParent() and update min, max, size, height of x.
-		   if(r.getParent() != null)
-			   r.getParent().setLeft(x);
+		   x.setParent(p);	// set x as r, t1 parent and x as son of p and update min, max, size, height of x.
+		   if(p != null)
+			   p.setLeft(x);
 		   x.setRight(r);
 		   r.setParent(x);
 		   x.setLeft(t1.getRoot());
@@ -258,12 +683,14 @@ public class AVLTree {
 	   }
 	   else {		// if t1 is higher - exactly same as before, but switch t1, t2 and right, left
 		   IAVLNode r = t1.getRoot();
+		   IAVLNode p = null;
 		   while(r.getHeight() > t2.getRoot().getHeight()) {
-			   r = r.getRight();
+			   p = t1.ownSon(p, r);
+			   r = p.getRight();
 		   }
-		   x.setParent(r.getParent());
-		   if(r.getParent() != null)
-			   r.getParent().setRight(x);
+		   x.setParent(p);
+		   if(p != null)
+			   p.setRight(x);
 		   x.setLeft(r);
 		   r.setParent(x);
 		   x.setRight(t2.getRoot());
@@ -293,24 +720,8 @@ public class AVLTree {
    
    private IAVLNode[] keySortedNodesArr() {		// returns array of IAVLNode, sorted by their keys
 	  IAVLNode[] nodesArr = new IAVLNode[this.root.getSize()];
-	  int i = 0;
-	  IAVLNode x = this.root;
-	  while(x != null && x.isRealNode()) {	// perform an in-order walk
-		  if(x.getLeft().isRealNode() && (i == 0 || x.getLeft().getKey() > nodesArr[i-1].getKey())) {  // needs to go left
-			  x = x.getLeft();
-			  continue;
-		  }
-		  if(i == 0 || x.getKey() > nodesArr[i-1].getKey()) {	// if didn't go left, add x to array and if x has right son, go right
-			  nodesArr[i] = x;
-			  i++;
-			  if(x.getRight().isRealNode()) {
-				  x = x.getRight();
-				  continue;
-			  }
-		  }
-		  x = x.getParent();	// else, go back to parent
-	  }
-	  return nodesArr;	// returns the array
+	  new InOrderExport(this.root, 0, null, null, nodesArr).invoke();
+	  return nodesArr;
    }
 
 	/**
@@ -342,13 +753,14 @@ public class AVLTree {
 	 * <p>
 	 * Returns a sorted array which contains all keys in the tree,
 	 * or an empty array if the tree is empty.
+	 * Large subtrees are exported in parallel, see InOrderExport.
 	 */
 	public int[] keysToArray() {
-		IAVLNode[] nodes = this.keySortedNodesArr();	// get nodes sorted by keys
+		AVLTreeOperationEvent event = new AVLTreeOperationEvent();
+		event.begin();
 		int[] keys = new int[this.root.getSize()];
-		for (int i = 0; i < this.root.getSize(); i++) {		// create array of keys - sorted because nodes are sorted
-			keys[i] = nodes[i].getKey();
-		}
+		new InOrderExport(this.root, 0, keys, null, null).invoke();
+		event.commit("keysToArray", 0, this.root.getSize(), this.root.getHeight(), 0);
 		return keys;
 	}
 
@@ -358,19 +770,106 @@ public class AVLTree {
 	 * Returns an array which contains all info in the tree,
 	 * sorted by their respective keys,
 	 * or an empty array if the tree is empty.
+	 * Large subtrees are exported in parallel, see InOrderExport.
 	 */
 	public String[] infoToArray() {
-		IAVLNode[] nodes = this.keySortedNodesArr();	// get nodes sorted by keys
+		AVLTreeOperationEvent event = new AVLTreeOperationEvent();
+		event.begin();
 		String[] values = new String[this.root.getSize()];
-		for (int i = 0; i < this.root.getSize(); i++) {		// create array of values - sorted because nodes are sorted
-			values[i] = nodes[i].getValue();
-		}
+		new InOrderExport(this.root, 0, null, values, null).invoke();
+		event.commit("infoToArray", 0, this.root.getSize(), this.root.getHeight(), 0);
 		return values;
 	}
 
+	/**
+	 * public List<AVLChangeFeed.Change> diff(AVLTree other)
+	 * <p>
+	 * Returns the changes that turn this tree into other, numbered from 0: a delete for every key only in this,
+	 * an insert for every key only in other, and a delete then an insert for every key whose info (or interval end) differs.
+	 * Both trees are walked in order together, and a subtree that is the same node object in both is skipped whole,
+	 * so trees sharing nodes are compared in time proportional to their differences, not their sizes.
+	 */
+	public List<AVLChangeFeed.Change> diff(AVLTree other) {
+		List<AVLChangeFeed.Change> changes = new ArrayList<>();
+		ArrayDeque<IAVLNode> a = new ArrayDeque<>();	// in-order frontiers, see pending()
+		ArrayDeque<IAVLNode> b = new ArrayDeque<>();
+		ArrayDeque<Boolean> aWhole = new ArrayDeque<>();
+		ArrayDeque<Boolean> bWhole = new ArrayDeque<>();
+		pending(a, aWhole, this.root);
+		pending(b, bWhole, other.root);
+		while (!a.isEmpty() && !b.isEmpty()) {
+			IAVLNode x = a.peek();
+			IAVLNode y = b.peek();
+			boolean xWhole = aWhole.peek();
+			boolean yWhole = bWhole.peek();
+			if (xWhole && yWhole && x == y) {	// shared subtree, nothing to emit
+				a.pop();
+				aWhole.pop();
+				b.pop();
+				bWhole.pop();
+			} else if (xWhole && (!yWhole || x.getHeight() >= y.getHeight())) {	// open the taller subtree first, to meet shared ones at the same place
+				expand(a, aWhole);
+			} else if (yWhole) {
+				expand(b, bWhole);
+			} else if (x.getKey() < y.getKey()) {
+				changes.add(new AVLChangeFeed.Change(changes.size(), AVLChangeFeed.DELETE, x.getKey(), null));
+				advance(a, aWhole);
+			} else if (x.getKey() > y.getKey()) {
+				changes.add(new AVLChangeFeed.Change(changes.size(), AVLChangeFeed.INSERT, y.getKey(), end(y), y.getValue()));
+				advance(b, bWhole);
+			} else {
+				String info = y.getValue();
+				if (!Objects.equals(x.getValue(), info) || end(x) != end(y)) {
+					changes.add(new AVLChangeFeed.Change(changes.size(), AVLChangeFeed.DELETE, x.getKey(), null));
+					changes.add(new AVLChangeFeed.Change(changes.size(), AVLChangeFeed.INSERT, y.getKey(), end(y), info));
+				}
+				advance(a, aWhole);
+				advance(b, bWhole);
+			}
+		}
+		while (!a.isEmpty()) {
+			if (aWhole.peek()) {
+				expand(a, aWhole);
+			} else {
+				changes.add(new AVLChangeFeed.Change(changes.size(), AVLChangeFeed.DELETE, a.peek().getKey(), null));
+				advance(a, aWhole);
+			}
+		}
+		while (!b.isEmpty()) {
+			if (bWhole.peek()) {
+				expand(b, bWhole);
+			} else {
+				changes.add(new AVLChangeFeed.Change(changes.size(), AVLChangeFeed.INSERT, b.peek().getKey(), end(b.peek()), b.peek().getValue()));
+				advance(b, bWhole);
+			}
+		}
+		return changes;
+	}
+
+	// An in-order frontier is a stack of real nodes, each marked whole (the node and both its subtrees remain)
+	// or not (the node and its right subtree remain). The top holds the smallest remaining keys.
+
+	private static void pending(ArrayDeque<IAVLNode> nodes, ArrayDeque<Boolean> whole, IAVLNode x) {	// push the subtree of x, if real
+		if (x.isRealNode()) {
+			nodes.push(x);
+			whole.push(true);
+		}
+	}
+
+	private static void expand(ArrayDeque<IAVLNode> nodes, ArrayDeque<Boolean> whole) {	// replace the whole subtree on top by its node and left subtree
+		whole.pop();
+		whole.push(false);
+		pending(nodes, whole, nodes.peek().getLeft());
+	}
+
+	private static void advance(ArrayDeque<IAVLNode> nodes, ArrayDeque<Boolean> whole) {	// remove the node on top, keeping its right subtree
+		whole.pop();
+		pending(nodes, whole, nodes.pop().getRight());
+	}
+
 
 	private void rightRotation(IAVLNode y) {	// Perform a right rotation on the nodes y, y.getLeft
-		IAVLNode x = y.getLeft();
+		IAVLNode x = this.ownSon(y, y.getLeft());
 		if (y.getParent() != null) {	// case y is not the root
 			if (y.getParent().getLeft() == y)
 				y.getParent().setLeft(x);
@@ -390,11 +889,11 @@ public class AVLTree {
 		y.updateMin();
 		x.updateMax();
 		x.updateMin();
-
+		this.rotations++;
 	}
 
 	private void leftRotation(IAVLNode x) {		// Perform a left rotation on the nodes x, x.getRight
-		IAVLNode y = x.getRight();
+		IAVLNode y = this.ownSon(x, x.getRight());
 		if (x.getParent() != null) {	// case x is not the root
 			if (x.getParent().getRight() == x)
 				x.getParent().setRight(y);
@@ -412,6 +911,9 @@ public class AVLTree {
 		y.setSize(y.getLeft().getSize() + y.getRight().getSize() + 1);
 		x.updateMax();
 		x.updateMin();
+		y.updateMax();
+		y.updateMin();
+		this.rotations++;
 	}
 
 	private int insertRotation(IAVLNode x, IAVLNode y, int cnt) {	// Performs the rotations in insert/Join according to possible cases
@@ -470,7 +972,7 @@ public class AVLTree {
 		if (y.getHeight() - x.getHeight() == 0 && y.getHeight() - z.getHeight() == 2)	// if problem with x, rotate x, y
 			cnt = this.insertRotation(x, y, cnt);
 		else if (y.getHeight() - z.getHeight() == 0 && y.getHeight() - x.getHeight() == 2)	// if problem with z, rotate z, y
-			cnt = this.insertRotation(z, y, cnt);
+			cnt = this.insertRotation(this.ownSon(y, z), y, cnt);
 		else if (rankDiff1 || rankDiff2) {	// if there is problem not from above cases (and in root) - promote root
 			this.root.setHeight(this.root.getHeight() + 1);
 			cnt++;
@@ -486,8 +988,10 @@ public class AVLTree {
 
 	private int insertRebalance(IAVLNode x) {	// in case if insert, rebalance correctly
 		IAVLNode y = x.getParent();
-		if (y.getRight().isRealNode() && y.getLeft().isRealNode())	// if no need for rebalance
+		if (y.getRight().isRealNode() && y.getLeft().isRealNode()) {	// if no need for rebalance, only correct sizes in path to root
+			this.setSize(y);
 			return 0;
+		}
 		return this.rebalance(x);	// rebalance from added node
 	}
 
@@ -505,6 +1009,87 @@ public class AVLTree {
 		return x;
 	}
 
+	private IAVLNode ownPath(int k, boolean real) { //lastVisitNodeSearch, after copying every shared node on the path (the last node included) if the last node is real (or external, if !real), i.e. if the caller changes the tree
+		if (!this.mayShare)
+			return lastVisitNodeSearch(k);
+		IAVLNode found = this.root;	// an update that fails must not copy, so search first
+		boolean shared = isShared(found);
+		while (found.isRealNode() && found.getKey() != k) {
+			found = found.getKey() > k ? found.getLeft() : found.getRight();
+			shared |= isShared(found);
+		}
+		if (!shared || found.isRealNode() != real)	// nothing to copy, or the update fails
+			return found;
+		IAVLNode root = this.root;
+		IAVLNode x = this.ownSon(null, root);
+		boolean copied = x != root;
+		while (x.isRealNode() && x.getKey() != k) {
+			IAVLNode son = x.getKey() > k ? x.getLeft() : x.getRight();
+			IAVLNode owned = this.ownSon(x, son);
+			copied |= owned != son;
+			x = owned;
+		}
+		if (copied) {	// min and max above a copy still point to the shared original, and a miss climbs no further
+			for (IAVLNode y = x.getParent(); y != null; y = y.getParent()) {
+				y.updateMin();
+				y.updateMax();
+			}
+		}
+		return x;
+	}
+
+	private IAVLNode ownEdge(boolean left) { //return the node with the smallest (or largest) key, after copying every shared node on the path to it
+		if (!this.mayShare)
+			return left ? this.root.getMin() : this.root.getMax();
+		IAVLNode x = this.ownSon(null, this.root);
+		while ((left ? x.getLeft() : x.getRight()).isRealNode())
+			x = this.ownSon(x, left ? x.getLeft() : x.getRight());
+		return x;
+	}
+
+	private IAVLNode ownSon(IAVLNode parent, IAVLNode son) { //return son if this tree owns it, else replace it in parent (null if son is the root) by a copy and return the copy.
+		if (!isShared(son))
+			return son;
+		AVLNode x = (AVLNode) son;
+		if (x.isHeldOnce()) {	// the other holders copied x, so take it back in place
+			x.takeBack(parent);
+			return x;
+		}
+		IAVLNode copy;
+		if (x instanceof IntervalAVLNode)
+			copy = new IntervalAVLNode(x.getKey(), ((IntervalAVLNode) x).getEnd(), x.getValue(), this.newExternalLeaf(null), this.newExternalLeaf(null), parent);
+		else if (x instanceof EncodedAVLNode)
+			copy = new EncodedAVLNode(x.getKey(), this.values.retain(((EncodedAVLNode) x).valueId), this.newExternalLeaf(null), this.newExternalLeaf(null), parent);	// x keeps its id in the other tree
+		else
+			copy = new AVLNode(x.getKey(), x.getValue(), this.newExternalLeaf(null), this.newExternalLeaf(null), parent, 0, true);
+		if (x.getLeft().isRealNode()) {	// the sons now have two parents, x and its copy
+			((AVLNode) x.getLeft()).hold();
+			copy.setLeft(x.getLeft());
+		}
+		if (x.getRight().isRealNode()) {
+			((AVLNode) x.getRight()).hold();
+			copy.setRight(x.getRight());
+		}
+		copy.getLeft().setParent(copy);	// a shared son ignores it, see fork()
+		copy.getRight().setParent(copy);
+		copy.setHeight(x.getHeight());
+		copy.setSize(x.getSize());
+		copy.updateMax();
+		copy.updateMin();
+		if (parent == null)
+			this.root = copy;
+		else if (parent.getLeft() == son)
+			parent.setLeft(copy);
+		else
+			parent.setRight(copy);
+		this.drop(x);	// the copy replaced a reference to x, which may have been the last one if another tree copied x meanwhile
+		return copy;
+	}
+
+	private static boolean isShared(IAVLNode x) {	// x may be held by other trees too, or its parent pointer may be another tree's
+		return x instanceof AVLNode && ((AVLNode) x).isShared();
+	}
+
 	private int setSonAndRebalance(IAVLNode parent, IAVLNode son){	// addes node son to node parent, and rebalance the tree
 		son.setParent(parent);
 		if (parent.getKey() < son.getKey()){
@@ -517,10 +1102,10 @@ public class AVLTree {
 
 	private IAVLNode findSuccessor(IAVLNode node) { //find the successor of the given node.
 		IAVLNode successor = node;
-		if (node.getRight().isRealNode()) {
-			successor = node.getRight();
+		if (node.getRight().isRealNode()) {	// the path to the successor is owned, deleteNode relinks it
+			successor = this.ownSon(node, node.getRight());
 			while (successor.getLeft().isRealNode()) {
-				successor = successor.getLeft();
+				successor = this.ownSon(successor, successor.getLeft());
 			}
 		} else if (node != this.root) {
 			if (successor.getParent() == this.root) {
@@ -533,236 +1118,104 @@ public class AVLTree {
 		return successor;
 	}
 
-	private void deleteNode(IAVLNode node) { //delete given node from the tree.
+	private IAVLNode deleteNode(IAVLNode node) { //delete given node from the tree. returns the lowest node whose subtree changed, or null.
 		if (node == this.root && !node.getRight().isRealNode() && !node.getLeft().isRealNode()) {
-			this.root = new AVLNode(-1, null, null, null, null, -1, false);
+			this.root = this.newExternalLeaf(null);
 		}
 		
 		IAVLNode y = node.getParent();
-		IAVLNode ExternalLeaf = new AVLNode(-1, null, null, null, this.root, -1, false);
+		IAVLNode ExternalLeaf = this.newExternalLeaf(y);
 		if (!node.getLeft().isRealNode() && !node.getRight().isRealNode()) {
 			if (y != null) {
 				if (y.getLeft() == node) {
 					y.setLeft(ExternalLeaf);
-					y.updateMin();
 				} else {
 					y.setRight(ExternalLeaf);
-					y.updateMax();
 				}
 			}
+			return y;
 		}
 		else if (node.getLeft().isRealNode() && !node.getRight().isRealNode()) {
-			if (node == this.root) {
-				this.root = node.getLeft();
-				node.getLeft().setParent(null);
-				this.root.updateMax();
-				this.root.updateMin();
-			} else if (y.getLeft() == node) {
-				y.setLeft(node.getLeft());
-				y.getLeft().setParent(y);
-				y.updateMax();
-				y.updateMin();
-			} else {
-				y.setRight(node.getLeft());
-				y.getRight().setParent(y);
-				y.updateMax();
-				y.updateMin();
-			}
-
+			this.replaceSon(y, node, node.getLeft());
+			return y;
 		} else if (!node.getLeft().isRealNode() && node.getRight().isRealNode()) {
-			if (this.root == node) {
-				this.root = node.getRight();
-				node.getRight().setParent(null);
-				this.root.updateMax();
-				this.root.updateMin();
-			} else if (y.getLeft() == node) {
-				y.setLeft(node.getRight());
-				y.getLeft().setParent(y);
-				y.updateMax();
-				y.updateMin();
-			} else {
-				y.setRight(node.getRight());
-				y.getRight().setParent(y);
-				y.updateMax();
-				y.updateMin();
-			}
-		} else{
-			
-			IAVLNode nodeSuccessor = findSuccessor(node);
-			IAVLNode successorParent = nodeSuccessor.getParent();
-			
-			if(successorParent == node) {
-				if(node.getParent() != null) {
-					if(node.getParent().getRight() == node)
-						node.getParent().setRight(nodeSuccessor);
-					else
-						node.getParent().setLeft(nodeSuccessor);
-				}
-				node.getLeft().setParent(nodeSuccessor);
-				nodeSuccessor.setLeft(node.getLeft());
-				nodeSuccessor.setParent(node.getParent());
-				nodeSuccessor.setHeight(Math.max(nodeSuccessor.getRight().getHeight(), nodeSuccessor.getLeft().getHeight()) + 1);
-				successorParent = nodeSuccessor.getParent();
-				successorParent.setHeight(1 + Math.max(successorParent.getLeft().getHeight(), successorParent.getRight().getHeight()));
-				setSize(nodeSuccessor);
-				return;
-			}
-			
-			successorParent.setLeft(nodeSuccessor.getRight());
-			if (this.root == node) {
-				this.root = nodeSuccessor;
-				nodeSuccessor.setLeft(node.getLeft());
-				nodeSuccessor.setRight(node.getRight());
-				nodeSuccessor.setHeight(Math.max(nodeSuccessor.getLeft().getHeight(), nodeSuccessor.getRight().getHeight()) + 1);
-
-
-			} else if (y.getRight() == node) {
-				y.setRight(nodeSuccessor);
-				nodeSuccessor.setRight(node.getRight());
-				nodeSuccessor.setLeft(node.getLeft());
-
-
-			} else {
-				y.setLeft(nodeSuccessor);
-				nodeSuccessor.setLeft(node.getLeft());
-				nodeSuccessor.setRight(node.getRight());
-
-			}
-			nodeSuccessor.getRight().setParent(nodeSuccessor);
-			nodeSuccessor.getLeft().setParent(nodeSuccessor);
-			nodeSuccessor.setParent(node.getParent());
-			nodeSuccessor.setHeight(Math.max(nodeSuccessor.getRight().getHeight(), nodeSuccessor.getLeft().getHeight()) + 1);
-			successorParent.setHeight(1 + Math.max(successorParent.getLeft().getHeight(), successorParent.getRight().getHeight()));
-			setSize(nodeSuccessor);
-			node.setParent(successorParent);
-
+			this.replaceSon(y, node, node.getRight());
+			return y;
 		}
 
+		IAVLNode nodeSuccessor = findSuccessor(node);
+		IAVLNode successorParent = nodeSuccessor.getParent();
+		if(successorParent == node) {	// successor is the right son - it only takes the left subtree of node
+			this.replaceSon(y, node, nodeSuccessor);
+			node.getLeft().setParent(nodeSuccessor);
+			nodeSuccessor.setLeft(node.getLeft());
+			return nodeSuccessor;
+		}
+		successorParent.setLeft(nodeSuccessor.getRight());	// successor leaves its place, then takes the place of node
+		successorParent.getLeft().setParent(successorParent);
+		this.replaceSon(y, node, nodeSuccessor);
+		nodeSuccessor.setLeft(node.getLeft());
+		nodeSuccessor.setRight(node.getRight());
+		nodeSuccessor.getRight().setParent(nodeSuccessor);
+		nodeSuccessor.getLeft().setParent(nodeSuccessor);
+		return successorParent;
 	}
 
+	private void replaceSon(IAVLNode parent, IAVLNode son, IAVLNode newSon) { //put newSon in the place of son (parent is null if son is the root).
+		newSon.setParent(parent);
+		if (parent == null)
+			this.root = newSon;
+		else if (parent.getLeft() == son)
+			parent.setLeft(newSon);
+		else
+			parent.setRight(newSon);
+	}
 
-
-
-
-
-
-	private int deleteRotation(IAVLNode x, IAVLNode y, int cnt) {  //find and do the correct rotation.
+	private int deleteRotation(IAVLNode x, IAVLNode y, int cnt) {  //find and do the correct rotation. y is the higher son of x.
 		if (bf(x) == -2) {
-			if (bf(x.getRight()) == -1 || bf(x.getRight()) == 0) {
-				this.leftRotation(x);
-				cnt++;
-				x.setHeight(Math.max(x.getLeft().getHeight(), x.getRight().getHeight()) + 1);
-				x.setSize(1 + x.getRight().getSize() + x.getLeft().getSize());
-				y.setHeight(Math.max(y.getLeft().getHeight(), y.getRight().getHeight()) + 1);
-			} else {
+			if (bf(y) == 1) {	// RL double rotation
 				this.rightRotation(y);
-				y.setHeight(Math.max(y.getLeft().getHeight(), y.getRight().getHeight()) + 1);
-				y.setSize(1 + y.getRight().getSize() + y.getLeft().getSize());
-				this.leftRotation(x);
-				x.setHeight(Math.max(x.getLeft().getHeight(), x.getRight().getHeight()) + 1);
-				x.getParent().setHeight(x.getParent().getHeight() + 1);
-				x.setSize(1 + x.getRight().getSize() + x.getLeft().getSize());
-				cnt += 2;
+				this.fixHeight(y);
+				cnt++;
 			}
+			this.leftRotation(x);
 		} else {
-			if (bf(x.getLeft()) == 1 || bf(x.getLeft()) == 0) {
-				this.rightRotation(x);
-				x.setHeight(Math.max(x.getLeft().getHeight(), x.getRight().getHeight()) + 1);
-				x.setSize(1 + x.getRight().getSize() + x.getLeft().getSize());
-				y.setHeight(Math.max(y.getLeft().getHeight(), y.getRight().getHeight()) + 1);
-				y.setSize(1 + y.getRight().getSize() + y.getLeft().getSize());
-				cnt++;
-			} else {
+			if (bf(y) == -1) {	// LR double rotation
 				this.leftRotation(y);
-				y.setHeight(Math.max(y.getLeft().getHeight(), y.getRight().getHeight() + 1));
-				y.setSize(1 + y.getRight().getSize() + y.getLeft().getSize());
-				this.rightRotation(x);
-				x.setHeight(1 + Math.max(x.getLeft().getHeight(), x.getRight().getHeight()));
-				x.getParent().setHeight(x.getParent().getHeight() - 1);
-				x.setSize(1 + x.getRight().getSize() + x.getLeft().getSize());
-				x.getParent().setSize(1 + x.getParent().getRight().getSize() + x.getParent().getLeft().getSize());
-				x.getParent().updateMax();
-				x.getParent().updateMin();
-				cnt += 2;
+				this.fixHeight(y);
+				cnt++;
 			}
+			this.rightRotation(x);
 		}
-		return cnt;
+		this.fixHeight(x);	// x is now a son of the new subtree root
+		this.fixHeight(x.getParent());
+		return cnt + 1;
 	}
 
 	private int deleteRebalance(IAVLNode node) { //delete a given node and rebalance the tree.
 		int cnt = 0;
-		deleteNode(node);
-		IAVLNode y = node.getParent();
-		int preHeight = -1;
-		if (y == null) {
-			y = this.root;
-			preHeight = y.getHeight();
-		} else {
-			preHeight = y.getHeight();
-			y.setHeight(1 + Math.max(y.getLeft().getHeight(), y.getRight().getHeight()));
+		IAVLNode y = deleteNode(node);
+		while (y != null) {	// climb to the root, correcting heights, sizes, min and max, and rotating where unbalanced
+			int preHeight = y.getHeight();
+			this.fixHeight(y);
 			y.setSize(1 + y.getRight().getSize() + y.getLeft().getSize());
 			y.updateMax();
 			y.updateMin();
-			cnt++;
-		}
-
-		node = new AVLNode(-1, null, null, null, null, -1, false);
-
-
-		while (y != null) {
-			if (y.getParent() == null && y.getLeft() == null && y.getRight() == null) {
-				return cnt;
-			}
-			if (Math.abs(bf(y)) < 2) {
-				if (y.getHeight() == preHeight) {
-					while(y != null) {
-						y.updateMax();
-						y.updateMin();
-						y.setSize(1 + y.getLeft().getSize() + y.getRight().getSize());
-						y.setHeight(1 + Math.max(y.getLeft().getHeight(), y.getRight().getHeight()));
-						y = y.getParent();
-					}
-					return cnt;
-				} else if (y.getParent() == null) {
-					y = y.getParent();
-				} else {
-					preHeight = y.getParent().getHeight();
-					y = y.getParent();
-					y.setHeight(1 + Math.max(y.getLeft().getHeight(), y.getRight().getHeight()));
-					y.setSize(1 + y.getRight().getSize() + y.getLeft().getSize());
-					y.updateMax();
-					y.updateMin();
-					cnt++;
-				}
-			} else if (Math.abs(bf(y)) == 2) {
-				if (bf(y) == -2) {
-					cnt += deleteRotation(y, y.getRight(), 0);
-					y = y.getParent();
-					if (y != null) {
-						preHeight = y.getHeight();
-						y.setHeight(1 + Math.max(y.getLeft().getHeight(), y.getRight().getHeight()));
-						y.setSize(1 + y.getRight().getSize() + y.getLeft().getSize());
-						y.updateMax();
-						y.updateMin();
-						cnt++;
-					}
-				} else {
-					cnt += deleteRotation(y, y.getLeft(), 0);
-					y = y.getParent();
-					if (y != null) {
-						preHeight = y.getHeight();
-						y.setHeight(1 + Math.max(y.getLeft().getHeight(), y.getRight().getHeight()));
-						y.setSize(1 + y.getRight().getSize() + y.getLeft().getSize());
-						y.updateMax();
-						y.updateMin();
-						cnt++;
-					}
-				}
+			if (Math.abs(bf(y)) == 2) {
+				cnt = deleteRotation(y, this.ownSon(y, bf(y) == -2 ? y.getRight() : y.getLeft()), cnt);
+				y = y.getParent();	// root of the rotated subtree, already corrected
+			} else if (y.getHeight() != preHeight) {	// demotion
+				cnt++;
 			}
+			y = y.getParent();
 		}
 		return cnt;
 	}
 
+	private void fixHeight(IAVLNode node) { //set the height of the given node from the heights of its sons
+		node.setHeight(1 + Math.max(node.getLeft().getHeight(), node.getRight().getHeight()));
+	}
+
 	private int bf(IAVLNode node) {
 		return node.getLeft().getHeight() - node.getRight().getHeight();
 	} //return the difference between the height of the sons of the given node
@@ -776,7 +1229,51 @@ public class AVLTree {
 			node = node.getParent();
 		}
 	}
+
+	private IAVLNode newNode(int k, int end, String i, IAVLNode parent) { //create a real leaf with key k and info i, in the layout of this tree. end is used by interval trees only
+		return this.newNode(k, end, i, null, null, parent);
+	}
+
+	private IAVLNode newNode(int k, int end, String i, IAVLNode left, IAVLNode right, IAVLNode parent) { //newNode with the given sons, and new external leaves for the null ones. The caller fixes height, size, min and max
+		IAVLNode leftExternalLeaf = left != null ? left : this.newExternalLeaf(null);
+		IAVLNode rightExternalLeaf = right != null ? right : this.newExternalLeaf(null);
+		IAVLNode node;
+		if (this.compact && this.values != null)
+			node = new EncodedCompactAVLNode(k, this.values, this.values.encode(i), leftExternalLeaf, rightExternalLeaf, parent);
+		else if (this.compact)
+			node = new CompactAVLNode(k, i, leftExternalLeaf, rightExternalLeaf, parent);
+		else if (this.interval)
+			node = new IntervalAVLNode(k, end, i, leftExternalLeaf, rightExternalLeaf, parent);
+		else if (this.values != null)
+			node = new EncodedAVLNode(k, this.values.encode(i), leftExternalLeaf, rightExternalLeaf, parent);
+		else
+			node = new AVLNode(k, i, leftExternalLeaf, rightExternalLeaf, parent, 0, true);
+		leftExternalLeaf.setParent(node);
+		rightExternalLeaf.setParent(node);
+		return node;
+	}
+
+	private void releaseValue(IAVLNode x) { //x left the tree for good, so its value id has one holder less
+		if (x instanceof EncodedAVLNode)
+			this.values.release(((EncodedAVLNode) x).valueId);
+		else if (x instanceof EncodedCompactAVLNode)
+			this.values.release(((EncodedCompactAVLNode) x).valueId);
+	}
+
+	private IAVLNode newExternalLeaf(IAVLNode parent) { //create an external leaf in the layout of this tree
+		if (this.compact)
+			return new ExternalLeaf(parent);
+		return new AVLNode(-1, null, null, null, parent, -1, false);
+	}
 	
+	private static VarHandle holdersHandle() {
+		try {
+			return MethodHandles.lookup().findVarHandle(AVLNode.class, "holders", char.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
 	/** 
 	 * public interface IAVLNode
 	 * ! Do not delete or modify this - otherwise all tests will fail !
@@ -812,6 +1309,8 @@ public class AVLTree {
     */
   public class AVLNode implements IAVLNode{
 
+	  	static final int BYTES = 56;	// header 12 + 9 fields of 4 bytes + isRealNode, shared, holders (2) + reference to the tree, aligned to 8
+
 	  	private int key;
 	  	private String value;
 	  	private IAVLNode left;
@@ -819,6 +1318,8 @@ public class AVLTree {
 		  private IAVLNode parent;
 		  private int height;
 		  private boolean isRealNode;
+		  private boolean shared;	// held by more than one parent (or tree) since it was last taken back, see fork()
+		  private char holders = 1;	// parents (or trees) referencing this, see fork(). Accessed through HOLDERS
 		  private int size;
 		  private IAVLNode min;
 		  private IAVLNode max;
@@ -922,6 +1423,424 @@ public class AVLTree {
 			else
 				this.max =  this;
 		}
+
+		boolean isShared() {
+			return this.shared;
+		}
+		boolean isHeldOnce() {	// a shared node held by one parent (or tree) only can be taken back
+			return (char) HOLDERS.getAcquire(this) == 1;
+		}
+		void hold() {	// one more parent (or tree) references this. A shared node is never changed again, only copied, until it is taken back
+			this.shared = true;
+			char holders;
+			do {
+				holders = (char) HOLDERS.getVolatile(this);
+				if (holders == Character.MAX_VALUE)	// the count saturates, and the node stays shared
+					return;
+			} while (!HOLDERS.compareAndSet(this, holders, (char) (holders + 1)));
+		}
+		boolean unhold() {	// one parent (or tree) less references this. Returns true if nobody holds it any more
+			char holders;
+			do {
+				holders = (char) HOLDERS.getVolatile(this);
+				if (holders == Character.MAX_VALUE)
+					return false;
+			} while (!HOLDERS.compareAndSet(this, holders, (char) (holders - 1)));
+			return holders == 1;
+		}
+		void takeBack(IAVLNode parent) {	// the only holder owns this again, under parent. A son that is not shared
+			this.shared = false;	// still has this as its parent, and a shared son is taken back when it is met
+			this.parent = parent;
+		}
+	}
+
+	/**
+	 * public static class CompactAVLNode
+	 *
+	 * A real node without the fields that can be derived: it is real by type,
+	 * and min/max are found by walking down the subtree instead of being cached.
+	 * Being static, it has no reference to its tree. 40 bytes instead of the 56 of AVLNode.
+	 */
+	public static class CompactAVLNode implements IAVLNode {
+
+		static final int BYTES = 40;	// header 12 + key, value, left, right, parent, height, size
+
+		private final int key;
+		private final String value;
+		private IAVLNode left;
+		private IAVLNode right;
+		private IAVLNode parent;
+		private int height;
+		private int size;
+
+		public CompactAVLNode(int key, String value, IAVLNode left, IAVLNode right, IAVLNode parent) {	// a new leaf
+			this.key = key;
+			this.value = value;
+			this.left = left;
+			this.right = right;
+			this.parent = parent;
+			this.height = 0;
+			this.size = 1;
+		}
+
+		public int getKey() {
+			return this.key;
+		}
+		public String getValue() {
+			return this.value;
+		}
+		public void setLeft(IAVLNode node) {
+			this.left = node;
+		}
+		public IAVLNode getLeft() {
+			return this.left;
+		}
+		public void setRight(IAVLNode node) {
+			this.right = node;
+		}
+		public IAVLNode getRight() {
+			return this.right;
+		}
+		public void setParent(IAVLNode node) {
+			this.parent = node;
+		}
+		public IAVLNode getParent() {
+			return this.parent;
+		}
+		public boolean isRealNode() {
+			return true;
+		}
+		public void setHeight(int height) {
+			this.height = height;
+		}
+		public int getHeight() {
+			return this.height;
+		}
+		public int getSize() {
+			return this.size;
+		}
+		public void setSize(int size) {
+			this.size = size;
+		}
+		public IAVLNode getMax() {	// walk to the maximum of the subtree
+			IAVLNode x = this;
+			while (x.getRight().isRealNode())
+				x = x.getRight();
+			return x;
+		}
+		public IAVLNode getMin() {	// walk to the minimum of the subtree
+			IAVLNode x = this;
+			while (x.getLeft().isRealNode())
+				x = x.getLeft();
+			return x;
+		}
+		public void updateMin() {	// min is not cached
+		}
+		public void updateMax() {	// max is not cached
+		}
+	}
+
+	/**
+	 * private static class InOrderExport
+	 *
+	 * Fills the slice of the output arrays that belongs to one subtree. The subtree of x holds
+	 * ranks [offset, offset + size), so its left subtree starts at offset and its right subtree
+	 * after x: subtrees larger than THRESHOLD fork their two sons and fill disjoint slices
+	 * in parallel, smaller ones are filled by a sequential in-order walk.
+	 * Exactly one of keys, values and nodes is not null.
+	 */
+	private static class InOrderExport extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+		static final int THRESHOLD = 1 << 13;	// smaller subtrees are not worth a task
+
+		private final IAVLNode x;
+		private final int offset;
+		private final int[] keys;
+		private final String[] values;
+		private final IAVLNode[] nodes;
+
+		InOrderExport(IAVLNode x, int offset, int[] keys, String[] values, IAVLNode[] nodes) {
+			this.x = x;
+			this.offset = offset;
+			this.keys = keys;
+			this.values = values;
+			this.nodes = nodes;
+		}
+
+		@Override
+		protected void compute() {
+			if (this.x.getSize() <= THRESHOLD) {
+				this.fill(this.x, this.offset);
+				return;
+			}
+			int at = this.offset + this.x.getLeft().getSize();	// rank of x
+			this.put(this.x, at);
+			invokeAll(new InOrderExport(this.x.getLeft(), this.offset, this.keys, this.values, this.nodes),
+					new InOrderExport(this.x.getRight(), at + 1, this.keys, this.values, this.nodes));
+		}
+
+		private void fill(IAVLNode x, int offset) {	// sequential in-order walk of the subtree of x, from offset
+			while (x.isRealNode()) {
+				this.fill(x.getLeft(), offset);
+				offset += x.getLeft().getSize();
+				this.put(x, offset++);
+				x = x.getRight();
+			}
+		}
+
+		private void put(IAVLNode x, int at) {
+			if (this.keys != null)
+				this.keys[at] = x.getKey();
+			else if (this.values != null)
+				this.values[at] = x.getValue();
+			else
+				this.nodes[at] = x;
+		}
+	}
+
+	/**
+	 * private class BulkBuild
+	 *
+	 * Builds the subtree of keys[from, to) with its median as root, and returns that root
+	 * (an external leaf if the range is empty). Ranges longer than THRESHOLD build their
+	 * two halves as parallel tasks; the halves are disjoint and the root is only linked
+	 * to them after both are done.
+	 */
+	private class BulkBuild extends RecursiveTask<IAVLNode> {
+
+		private static final long serialVersionUID = 1L;
+		static final int THRESHOLD = 1 << 13;
+
+		private final int[] keys;
+		private final String[] info;
+		private final int from;
+		private final int to;
+
+		BulkBuild(int[] keys, String[] info, int from, int to) {
+			this.keys = keys;
+			this.info = info;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected IAVLNode compute() {
+			if (this.to - this.from <= THRESHOLD)
+				return this.buildSequential(this.from, this.to);
+			int mid = (this.from + this.to) >>> 1;
+			BulkBuild left = new BulkBuild(this.keys, this.info, this.from, mid);
+			left.fork();
+			IAVLNode right = new BulkBuild(this.keys, this.info, mid + 1, this.to).compute();
+			return this.link(mid, left.join(), right);
+		}
+
+		IAVLNode buildSequential(int from, int to) {
+			if (from == to)
+				return null;
+			int mid = (from + to) >>> 1;
+			return this.link(mid, this.buildSequential(from, mid), this.buildSequential(mid + 1, to));
+		}
+
+		private IAVLNode link(int mid, IAVLNode left, IAVLNode right) {	// a node for keys[mid] with the given sons (null if empty)
+			IAVLNode x = AVLTree.this.newNode(this.keys[mid], this.keys[mid], this.info[mid], left, right, null);	// leaves only where a son is missing
+			x.setHeight(Math.max(x.getLeft().getHeight(), x.getRight().getHeight()) + 1);
+			x.setSize(x.getLeft().getSize() + x.getRight().getSize() + 1);
+			x.updateMax();
+			x.updateMin();
+			return x;
+		}
+	}
+
+	/**
+	 * public class IntervalAVLNode
+	 *
+	 * A node of an interval tree: the interval [getKey(), getEnd()] and the largest end in its subtree.
+	 * updateMax() recomputes the largest end too, so every rotation, rebalance and join that keeps
+	 * the cached max right keeps it right. 64 bytes.
+	 */
+	public class IntervalAVLNode extends AVLNode {
+
+		static final int BYTES = 64;	// AVLNode + end, maxEnd, aligned to 8
+
+		private final int end;
+		private int maxEnd;	// largest end in the subtree
+
+		public IntervalAVLNode(int start, int end, String value, IAVLNode left, IAVLNode right, IAVLNode parent) {	// a new leaf
+			super(start, value, left, right, parent, 0, true);
+			this.end = end;
+			this.maxEnd = end;
+		}
+
+		public int getEnd() {
+			return this.end;
+		}
+		public int getMaxEnd() {
+			return this.maxEnd;
+		}
+
+		@Override
+		public void updateMax() {
+			super.updateMax();
+			this.maxEnd = Math.max(this.end, Math.max(maxEnd(this.getLeft()), maxEnd(this.getRight())));
+		}
+	}
+
+	/**
+	 * public class EncodedAVLNode
+	 *
+	 * An AVLNode whose info is an id in the value store of its tree, decoded on every getValue().
+	 * 64 bytes (the id does not fit in the alignment padding of AVLNode), but no String per node.
+	 */
+	public class EncodedAVLNode extends AVLNode {
+
+		static final int BYTES = 64;	// AVLNode + valueId, aligned to 8
+
+		private final int valueId;
+
+		public EncodedAVLNode(int key, int valueId, IAVLNode left, IAVLNode right, IAVLNode parent) {	// a new leaf
+			super(key, null, left, right, parent, 0, true);
+			this.valueId = valueId;
+		}
+
+		@Override
+		public String getValue() {
+			return AVLTree.this.values.decode(this.valueId);
+		}
+	}
+
+	/**
+	 * public static class EncodedCompactAVLNode
+	 *
+	 * A CompactAVLNode whose info is an id in a value store, decoded on every getValue().
+	 * Being static, it keeps its own reference to the store. 48 bytes, but no String per node.
+	 */
+	public static class EncodedCompactAVLNode extends CompactAVLNode {
+
+		static final int BYTES = 48;	// CompactAVLNode + store + valueId
+
+		private final AVLValueStore values;
+		private final int valueId;
+
+		public EncodedCompactAVLNode(int key, AVLValueStore values, int valueId, IAVLNode left, IAVLNode right, IAVLNode parent) {	// a new leaf
+			super(key, null, left, right, parent);
+			this.values = values;
+			this.valueId = valueId;
+		}
+
+		@Override
+		public String getValue() {
+			return this.values.decode(this.valueId);
+		}
+	}
+
+	/**
+	 * public static class ExternalLeaf
+	 *
+	 * An external (virtual) node of a compact tree. Key -1, height -1, size 0 and no sons;
+	 * only its parent is stored, since insert attaches new nodes through it. 16 bytes instead of 56.
+	 */
+	public static class ExternalLeaf implements IAVLNode {
+
+		static final int BYTES = 16;	// header 12 + parent
+
+		private IAVLNode parent;
+
+		public ExternalLeaf(IAVLNode parent) {
+			this.parent = parent;
+		}
+
+		public int getKey() {
+			return -1;
+		}
+		public String getValue() {
+			return null;
+		}
+		public void setLeft(IAVLNode node) {
+			throw new UnsupportedOperationException("external leaf has no sons");
+		}
+		public IAVLNode getLeft() {
+			return null;
+		}
+		public void setRight(IAVLNode node) {
+			throw new UnsupportedOperationException("external leaf has no sons");
+		}
+		public IAVLNode getRight() {
+			return null;
+		}
+		public void setParent(IAVLNode node) {
+			this.parent = node;
+		}
+		public IAVLNode getParent() {
+			return this.parent;
+		}
+		public boolean isRealNode() {
+			return false;
+		}
+		public void setHeight(int height) {
+			throw new UnsupportedOperationException("external leaf has height -1");
+		}
+		public int getHeight() {
+			return -1;
+		}
+		public int getSize() {
+			return 0;
+		}
+		public void setSize(int size) {
+			throw new UnsupportedOperationException("external leaf has size 0");
+		}
+		public IAVLNode getMax() {
+			return this;
+		}
+		public IAVLNode getMin() {
+			return this;
+		}
+		public void updateMin() {
+		}
+		public void updateMax() {
+		}
+	}
+
+	/**
+	 * public static class MemoryFootprint
+	 *
+	 * Estimated heap bytes of a tree, as returned by memoryFootprint().
+	 */
+	public static class MemoryFootprint {
+
+		private long realNodes;
+		private long realNodeBytes;
+		private long externalLeaves;
+		private long externalLeafBytes;
+		private long valueBytes;
+
+		public long realNodes() {
+			return this.realNodes;
+		}
+		public long realNodeBytes() {
+			return this.realNodeBytes;
+		}
+		public long externalLeaves() {
+			return this.externalLeaves;
+		}
+		public long externalLeafBytes() {
+			return this.externalLeafBytes;
+		}
+		public long valueBytes() {	// info strings, each distinct String object counted once
+			return this.valueBytes;
+		}
+		public long totalBytes() {
+			return this.realNodeBytes + this.externalLeafBytes + this.valueBytes;
+		}
+		public double bytesPerEntry() {
+			return this.realNodes == 0 ? 0 : (double) this.totalBytes() / this.realNodes;
+		}
+		@Override
+		public String toString() {
+			return this.realNodes + " nodes: " + this.realNodeBytes + " B, " + this.externalLeaves + " external leaves: "
+					+ this.externalLeafBytes + " B, info: " + this.valueBytes + " B, total " + this.totalBytes() + " B ("
+					+ String.format("%.1f", this.bytesPerEntry()) + " B/entry)";
+		}
 	}
 
 }
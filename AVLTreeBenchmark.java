@@ -0,0 +1,604 @@
+package src;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ *
+ * AVLTreeBenchmark
+ *
+ * Small throughput benchmarks for AVLTree and the structures built on it.
+ * Run with the scenario name as the first argument, e.g.
+ * java src.AVLTreeBenchmark sharded
+ *
+ */
+
+public class AVLTreeBenchmark {
+
+	private static final int KEY_RANGE = 1 << 20;
+	private static final long RUN_MILLIS = 2000;
+
+	public static void main(String[] args) throws InterruptedException, IOException, ExecutionException {
+		String scenario = args.length > 0 ? args[0] : "sharded";
+		switch (scenario) {
+			case "sharded":
+				sharded();
+				break;
+			case "queue":
+				queue();
+				break;
+			case "wavl":
+				wavl();
+				break;
+			case "memory":
+				memory();
+				break;
+			case "searchAll":
+				searchAll();
+				break;
+			case "values":
+				values();
+				break;
+			case "jfr":
+				jfr();
+				break;
+			case "feed":
+				feed();
+				break;
+			case "interval":
+				interval();
+				break;
+			case "export":
+				export();
+				break;
+			case "fork":
+				fork();
+				break;
+			default:
+				System.out.println("unknown scenario: " + scenario);
+		}
+	}
+
+	/**
+	 * Throughput vs cores of a single AVLTree behind one lock, against a ShardedAVLTree
+	 * with one shard per core. Every thread runs 50% inserts, 25% deletes and 25% searches
+	 * on uniformly random keys.
+	 */
+	private static void sharded() throws InterruptedException {
+		int cores = Runtime.getRuntime().availableProcessors();
+		System.out.println("threads\tlocked ops/s\tsharded ops/s");
+		for (int threads = 1; threads <= cores; threads *= 2) {
+			AVLTree tree = new AVLTree();
+			ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+			long locked = run(threads, (op, k) -> {
+				if (op < 2) {
+					lock.writeLock().lock();
+					try {
+						tree.insert(k, "v");
+					} finally {
+						lock.writeLock().unlock();
+					}
+				} else if (op == 2) {
+					lock.writeLock().lock();
+					try {
+						tree.delete(k);
+					} finally {
+						lock.writeLock().unlock();
+					}
+				} else {
+					lock.readLock().lock();
+					try {
+						tree.search(k);
+					} finally {
+						lock.readLock().unlock();
+					}
+				}
+			});
+			ShardedAVLTree map = new ShardedAVLTree(cores, 0, KEY_RANGE - 1);
+			long sharded = run(threads, (op, k) -> {
+				if (op < 2)
+					map.insert(k, "v");
+				else if (op == 2)
+					map.delete(k);
+				else
+					map.search(k);
+			});
+			System.out.println(threads + "\t" + locked + "\t" + sharded);
+		}
+	}
+
+	/**
+	 * Many client threads, each submitting inserts, deletes and searches to a SingleWriterAVLTree
+	 * and waiting for every future. Prints throughput, batch size and queue latency.
+	 */
+	private static void queue() throws InterruptedException {
+		int clients = 1000;
+		int opsPerClient = 500;
+		SingleWriterAVLTree tree = new SingleWriterAVLTree(1024);
+		List<Thread> workers = new ArrayList<>();
+		long start = System.nanoTime();
+		for (int t = 0; t < clients; t++) {
+			Thread worker = new Thread(() -> {
+				ThreadLocalRandom rnd = ThreadLocalRandom.current();
+				for (int i = 0; i < opsPerClient; i++) {
+					int op = rnd.nextInt(4);	// drawn apart from k, so deletes and searches can hit inserted keys
+					int k = rnd.nextInt(KEY_RANGE);
+					if (op < 2)
+						tree.insert(k, "v").join();
+					else if (op == 2)
+						tree.delete(k).join();
+					else
+						tree.search(k).join();
+				}
+			});
+			workers.add(worker);
+			worker.start();
+		}
+		for (Thread worker : workers)
+			worker.join();
+		long elapsed = System.nanoTime() - start;
+		tree.close();
+		System.out.println("clients\tops/s\tavg batch\tmax batch\tavg queue us\tmax queue us");
+		System.out.println(clients + "\t" + (long) (clients * (double) opsPerClient * 1e9 / elapsed) + "\t"
+				+ String.format("%.1f", tree.averageBatchSize()) + "\t" + tree.maxBatchSize() + "\t"
+				+ String.format("%.1f", tree.averageQueueLatencyNanos() / 1000) + "\t" + tree.maxQueueLatencyNanos() / 1000);
+	}
+
+	/**
+	 * Delete-heavy workload on AVLTree and WAVLTree: fill with n distinct random keys, then run
+	 * n/2 rounds of one insert of a new key and two deletes of keys in the tree, so every operation
+	 * succeeds and the tree shrinks to n/2. Prints time and rotations per operation.
+	 */
+	private static void wavl() {
+		int n = 1 << 20;
+		int[] keys = new int[n + n / 2];	// keys[0, n) fill the tree, keys[n, n + n/2) are inserted later
+		for (int i = 0; i < keys.length; i++)
+			keys[i] = 4 * i;
+		ThreadLocalRandom rnd = ThreadLocalRandom.current();
+		for (int i = keys.length - 1; i > 0; i--) {	// shuffle
+			int j = rnd.nextInt(i + 1);
+			int k = keys[i];
+			keys[i] = keys[j];
+			keys[j] = k;
+		}
+		System.out.println("tree\tns/op\trotations/op");
+		System.out.println("AVL\t" + deleteHeavy(new AVLTree(), keys, n));
+		System.out.println("WAVL\t" + deleteHeavy(new WAVLTree(), keys, n));
+	}
+
+	private static String deleteHeavy(IAVLTree<?> tree, int[] keys, int n) {	// returns "ns/op<tab>rotations/op"
+		for (int i = 0; i < n; i++)
+			tree.insert(keys[i], "v");
+		long rotations = tree.getRotationCount();
+		long misses = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < n / 2; i++) {
+			misses += tree.insert(keys[n + i], "v") == -1 ? 1 : 0;
+			misses += tree.delete(keys[2 * i]) == -1 ? 1 : 0;
+			misses += tree.delete(keys[2 * i + 1]) == -1 ? 1 : 0;
+		}
+		long nanos = System.nanoTime() - start;
+		rotations = tree.getRotationCount() - rotations;
+		long ops = 3L * (n / 2);
+		return nanos / ops + "\t" + String.format("%.3f", rotations / (double) ops) + (misses == 0 ? "" : "\t" + misses + " misses");
+	}
+
+	/**
+	 * Builds the same 1M-entry tree in the default and compact layouts, and prints the modelled
+	 * footprint of each next to the heap growth measured after a full GC.
+	 */
+	private static void memory() {
+		int n = 1 << 20;
+		String[] info = new String[n];
+		for (int i = 0; i < n; i++)
+			info[i] = "value-" + (i % 1000);	// info strings are built up front, so only the tree is measured
+		for (boolean compact : new boolean[] { false, true }) {
+			long before = usedHeap();
+			AVLTree tree = new AVLTree(compact);
+			for (int i = 0; i < n; i++)
+				tree.insert(i * 7919 % n, info[i]);
+			long measured = usedHeap() - before;
+			AVLTree.MemoryFootprint f = tree.memoryFootprint();
+			System.out.println((compact ? "compact" : "default") + ": " + f);
+			System.out.println("  nodes + leaves measured " + measured + " B, modelled " + (f.realNodeBytes() + f.externalLeafBytes()) + " B");
+		}
+	}
+
+	private static long usedHeap() {
+		Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++)
+			System.gc();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+	/**
+	 * searchAll against a loop of search, for batches of 1000 probes into a 1M-entry tree.
+	 * Uniform probes are spread over the whole key range, clustered probes fall in a range of 8000 keys.
+	 */
+	private static void searchAll() {
+		int n = 1 << 20;
+		int batch = 1000;
+		int rounds = 5000;
+		AVLTree tree = new AVLTree();
+		for (int i = 0; i < n; i++)
+			tree.insert(i * 2, "v");	// every other key is missing
+		ThreadLocalRandom rnd = ThreadLocalRandom.current();
+		System.out.println("probes\tsearch loop ns/key\tsearchAll ns/key");
+		for (boolean clustered : new boolean[] { false, true }) {
+			int[][] probes = new int[rounds][batch];
+			for (int[] p : probes) {
+				int base = rnd.nextInt(2 * n - 8000);
+				for (int i = 0; i < batch; i++)
+					p[i] = clustered ? base + rnd.nextInt(8000) : rnd.nextInt(2 * n);
+			}
+			long sink = 0;
+			long start = System.nanoTime();
+			for (int[] p : probes) {
+				for (int k : p)
+					sink += tree.search(k) == null ? 0 : 1;
+			}
+			long loop = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (int[] p : probes) {
+				for (String v : tree.searchAll(p))
+					sink -= v == null ? 0 : 1;
+			}
+			long all = System.nanoTime() - start;
+			System.out.println((clustered ? "clustered" : "uniform") + "\t" + loop / ((long) rounds * batch) + "\t"
+					+ all / ((long) rounds * batch) + (sink == 0 ? "" : "\tmismatch"));
+		}
+	}
+
+	/**
+	 * Footprint and read latency of a 1M-entry tree with plain String info against info kept in an AVLValueStore,
+	 * in both node layouts. 80% of the info is drawn, with a skew, from 10k short ASCII values and 20% is unique.
+	 * Every info is its own String instance, as it would be when parsed from input.
+	 * Then the store footprint after 200k unique values were inserted and deleted again.
+	 */
+	private static void values() {
+		int n = 1 << 20;
+		int distinct = 10000;
+		ThreadLocalRandom rnd = ThreadLocalRandom.current();
+		String[] info = new String[n];
+		for (int i = 0; i < n; i++) {
+			if (rnd.nextInt(5) == 0) {
+				info[i] = "id-" + Long.toHexString(rnd.nextLong());
+			} else {
+				double r = rnd.nextDouble();
+				info[i] = new String("status-" + (int) (distinct * r * r * r));	// small values are the most frequent
+			}
+		}
+		int[] probes = new int[n];
+		for (int i = 0; i < n; i++)
+			probes[i] = rnd.nextInt(n);
+		System.out.println("layout	info	bytes/entry	node B	info B	search ns/op	infoToArray ms");
+		for (boolean compact : new boolean[] { false, true }) {
+			for (boolean encoded : new boolean[] { false, true }) {
+				AVLTree tree = new AVLTree(compact, encoded ? new AVLValueStore() : null);
+				for (int i = 0; i < n; i++)
+					tree.insert((int) ((long) i * 7919 % n), info[i]);	// a permutation of [0, n)
+				AVLTree.MemoryFootprint f = tree.memoryFootprint();
+				long sink = 0;
+				for (int round = 0; round < 2; round++) {	// the first round warms up
+					sink = 0;
+					for (int k : probes)
+						sink += tree.search(k).length();
+				}
+				long start = System.nanoTime();
+				for (int k : probes)
+					sink += tree.search(k).length();
+				long search = (System.nanoTime() - start) / n;
+				start = System.nanoTime();
+				sink += tree.infoToArray().length;
+				long export = (System.nanoTime() - start) / 1000000;
+				System.out.println((compact ? "compact" : "default") + "	" + (encoded ? "encoded" : "plain") + "	"
+						+ String.format("%.1f", f.bytesPerEntry()) + "	" + (f.realNodeBytes() + f.externalLeafBytes()) + "	"
+						+ f.valueBytes() + "	" + search + "	" + export + (sink == 0 ? "\tmismatch" : ""));
+			}
+		}
+		AVLValueStore values = new AVLValueStore();	// churn: every value is deleted soon after it is inserted
+		AVLTree tree = new AVLTree(false, values);
+		for (int i = 0; i < 200000; i++) {
+			tree.insert(i, "id-" + Long.toHexString(rnd.nextLong()));
+			if (i >= 100)
+				tree.delete(i - 100);
+		}
+		System.out.println("after 200k inserts and deletes, " + tree.size() + " entries: store " + values.count() + " values, "
+				+ values.memoryBytes() + " bytes");
+	}
+
+	/**
+	 * Cost of the AVLTreeOperationEvent instrumentation: 1M inserts and deletes with no recording, with a recording
+	 * at the default 1 ms threshold and with a recording of every event. Then checks that a recording file holds
+	 * events of every instrumented operation, and prints their count and slowest duration.
+	 */
+	private static void jfr() throws IOException {
+		int n = 1 << 20;
+		insertDelete(n);	// warm up
+		System.out.println("recording\tns/op");
+		System.out.println("none\t" + insertDelete(n));
+		for (Duration threshold : new Duration[] { Duration.ofMillis(1), Duration.ZERO }) {
+			try (Recording recording = new Recording()) {
+				recording.enable("src.AVLTreeOperation").withThreshold(threshold);
+				recording.start();
+				System.out.println("threshold " + threshold.toMillis() + " ms\t" + insertDelete(n));
+			}
+		}
+		Path file = Files.createTempFile("avltree", ".jfr");
+		try (Recording recording = new Recording()) {
+			recording.enable("src.AVLTreeOperation").withThreshold(Duration.ZERO);
+			recording.start();
+			AVLTree tree = new AVLTree();
+			for (int i = 0; i < 100000; i++)
+				tree.insert(i, "v");
+			tree.delete(50000);
+			tree.keysToArray();
+			tree.infoToArray();
+			AVLTree[] halves = tree.split(25000);
+			halves[0].join(tree.new AVLNode(25000, "v", tree.new AVLNode(-1, null, null, null, null, -1, false),
+					tree.new AVLNode(-1, null, null, null, null, -1, false), null, 0, true), halves[1]);
+			recording.stop();
+			recording.dump(file);
+		}
+		Map<String, long[]> found = new TreeMap<>();	// operation -> {count, slowest ns}
+		for (RecordedEvent e : RecordingFile.readAllEvents(file)) {
+			long[] c = found.computeIfAbsent(e.getString("operation"), o -> new long[2]);
+			c[0]++;
+			c[1] = Math.max(c[1], e.getDuration().toNanos());
+		}
+		Files.delete(file);
+		for (Map.Entry<String, long[]> e : found.entrySet())
+			System.out.println(e.getKey() + "\t" + e.getValue()[0] + " events\tslowest " + e.getValue()[1] + " ns");
+		for (String op : new String[] { "insert", "delete", "split", "join", "keysToArray", "infoToArray" }) {
+			if (!found.containsKey(op))
+				throw new IllegalStateException("no " + op + " event recorded");
+		}
+		System.out.println("events of every operation recorded");
+	}
+
+	private static long insertDelete(int n) {	// ns per operation of n random inserts then n random deletes
+		ThreadLocalRandom rnd = ThreadLocalRandom.current();
+		AVLTree tree = new AVLTree();
+		long start = System.nanoTime();
+		for (int i = 0; i < n; i++)
+			tree.insert(rnd.nextInt(KEY_RANGE), "v");
+		for (int i = 0; i < n; i++)
+			tree.delete(rnd.nextInt(KEY_RANGE));
+		return (System.nanoTime() - start) / (2L * n);
+	}
+
+	/**
+	 * Catching a replica of a 1M-entry tree up after k random inserts and deletes: through a change feed,
+	 * with a full keysToArray/infoToArray dump, and with diff between the two trees (which share no nodes, so diff
+	 * walks both). Finally lets the feed overrun a consumer and resyncs it with diff.
+	 */
+	private static void feed() {
+		int n = 1 << 20;
+		ThreadLocalRandom rnd = ThreadLocalRandom.current();
+		AVLTree primary = new AVLTree();
+		AVLTree replica = new AVLTree();
+		for (int i = 0; i < n; i++) {
+			int k = (int) ((long) i * 7919 % n) * 2;	// even keys, so inserts of odd keys are new
+			primary.insert(k, "v");
+			replica.insert(k, "v");
+		}
+		AVLChangeFeed feed = new AVLChangeFeed(1 << 16);
+		primary.setChangeFeed(feed);
+		AVLChangeFeed.Consumer consumer = feed.register();
+		System.out.println("changes\tfeed ms\tdump ms\tdiff ms");
+		for (int k : new int[] { 100, 1000, 10000, 60000 }) {
+			for (int i = 0; i < k; i++) {
+				if (rnd.nextBoolean())
+					primary.insert(rnd.nextInt(2 * n), "w");
+				else
+					primary.delete(rnd.nextInt(2 * n));
+			}
+			AVLTree copy = new AVLTree();	// a second replica, brought up to date with diff
+			for (int key : replica.keysToArray())
+				copy.insert(key, "v");
+			long start = System.nanoTime();
+			for (AVLChangeFeed.Change c = consumer.poll(); c != null; c = consumer.poll())
+				c.applyTo(replica);
+			long viaFeed = System.nanoTime() - start;
+			start = System.nanoTime();
+			int[] keys = primary.keysToArray();
+			String[] info = primary.infoToArray();
+			long viaDump = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (AVLChangeFeed.Change c : copy.diff(primary))
+				c.applyTo(copy);
+			long viaDiff = System.nanoTime() - start;
+			if (!Arrays.equals(replica.keysToArray(), keys) || !Arrays.equals(copy.infoToArray(), info))
+				throw new IllegalStateException("replica out of sync");
+			System.out.println(k + "\t" + String.format("%.1f", viaFeed / 1e6) + "\t" + viaDump / 1000000 + "\t" + viaDiff / 1000000);
+		}
+		for (int i = 0; i < 2 * feed.capacity(); i++)	// the consumer does not poll, so the feed overwrites its next event
+			primary.insert(2 * n + i, "w");
+		String overrun = null;
+		try {
+			consumer.poll();
+		} catch (IllegalStateException e) {
+			overrun = e.getMessage();
+		}
+		if (overrun == null)
+			throw new IllegalStateException("overrun not detected");
+		System.out.println("overrun detected: " + overrun);
+		long resumeAt = feed.nextSequence();
+		for (AVLChangeFeed.Change c : replica.diff(primary))
+			c.applyTo(replica);
+		consumer.seek(resumeAt);
+		System.out.println("resynced with diff, replica " + (Arrays.equals(replica.keysToArray(), primary.keysToArray()) ? "matches" : "differs"));
+	}
+
+	/**
+	 * Stabbing queries on 1M time windows, through an interval tree and by scanning the sorted starts and ends
+	 * (as with keysToArray). Windows start every 1 to 16 ticks; most last up to 100 ticks, 1% up to 100000.
+	 */
+	private static void interval() {
+		int n = 1 << 20;
+		int queries = 2000;
+		ThreadLocalRandom rnd = ThreadLocalRandom.current();
+		AVLTree tree = AVLTree.intervalTree();
+		int[] starts = new int[n];
+		int[] ends = new int[n];
+		int start = 0;
+		for (int i = 0; i < n; i++) {
+			start += 1 + rnd.nextInt(16);
+			starts[i] = start;
+			ends[i] = start + (rnd.nextInt(100) == 0 ? rnd.nextInt(100000) : rnd.nextInt(100));
+			tree.insert(starts[i], ends[i], "w" + i);
+		}
+		int[] points = new int[queries];
+		for (int i = 0; i < queries; i++)
+			points[i] = rnd.nextInt(start);
+		long found = 0;
+		long begin = System.nanoTime();
+		for (int t : points)
+			found += tree.stabbing(t).size();
+		long viaTree = (System.nanoTime() - begin) / queries;
+		long scanned = 0;
+		begin = System.nanoTime();
+		for (int t : points) {
+			for (int i = 0; i < n && starts[i] <= t; i++)
+				scanned += ends[i] >= t ? 1 : 0;
+		}
+		long viaScan = (System.nanoTime() - begin) / queries;
+		System.out.println("windows overlapping a point: " + (double) found / queries + (found == scanned ? "" : ", scan found " + scanned));
+		System.out.println("stabbing ns/query\t" + viaTree);
+		System.out.println("scan ns/query\t" + viaScan);
+	}
+
+	/**
+	 * keysToArray, infoToArray and the bulk-load constructor on 4M entries, run in fork-join pools of
+	 * 1 to cores threads (the tasks they fork stay in the pool they run in). Best of 5 runs each.
+	 */
+	private static void export() throws InterruptedException, ExecutionException {
+		int n = 1 << 22;
+		int[] keys = new int[n];
+		String[] info = new String[n];
+		for (int i = 0; i < n; i++) {
+			keys[i] = 2 * i;
+			info[i] = "v" + (i & 1023);
+		}
+		AVLTree tree = new AVLTree();
+		for (int i = 0; i < n; i++)
+			tree.insert(keys[(int) ((long) i * 7919 % n)], info[(int) ((long) i * 7919 % n)]);
+		int cores = Runtime.getRuntime().availableProcessors();
+		System.out.println("threads\tkeysToArray ms\tinfoToArray ms\tbulk build ms");
+		for (int threads = 1; threads <= cores; threads *= 2) {
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			long[] best = { Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE };
+			for (int round = 0; round < 5; round++) {
+				long start = System.nanoTime();
+				int[] k = pool.submit(tree::keysToArray).get();
+				long mid = System.nanoTime();
+				String[] v = pool.submit(tree::infoToArray).get();
+				long end = System.nanoTime();
+				AVLTree built = pool.submit(() -> new AVLTree(keys, info)).get();
+				long done = System.nanoTime();
+				if (!Arrays.equals(k, keys) || !Arrays.equals(v, info) || built.size() != n || built.getRoot().getHeight() != 22)
+					throw new IllegalStateException("export or build is wrong");
+				best[0] = Math.min(best[0], mid - start);
+				best[1] = Math.min(best[1], end - mid);
+				best[2] = Math.min(best[2], done - end);
+			}
+			pool.shutdown();
+			System.out.println(threads + "\t" + best[0] / 1000000 + "\t" + best[1] / 1000000 + "\t" + best[2] / 1000000);
+		}
+	}
+
+	/**
+	 * What-if branches of a 1M-entry tree: a copy through keysToArray/infoToArray and the bulk-load constructor
+	 * against fork(), then k random inserts and deletes on the branch. Reports the nodes the branch does not share
+	 * with the original, and the time of diff between them.
+	 */
+	private static void fork() {
+		int n = 1 << 20;
+		ThreadLocalRandom rnd = ThreadLocalRandom.current();
+		AVLTree tree = new AVLTree();
+		for (int i = 0; i < n; i++)
+			tree.insert((int) ((long) i * 7919 % n) * 2, "v");
+		long start = System.nanoTime();
+		AVLTree copy = new AVLTree(tree.keysToArray(), tree.infoToArray());
+		System.out.println("copy through arrays: " + (System.nanoTime() - start) / 1000000 + " ms, " + copy.size() + " new nodes");
+		Set<AVLTree.IAVLNode> original = Collections.newSetFromMap(new IdentityHashMap<>());
+		collect(tree.getRoot(), original);
+		System.out.println("changes\tfork ns\tupdate ns/op\tnew nodes\tnew nodes/change\tdiff ms\tdiff changes");
+		for (int k : new int[] { 1, 100, 10000, 100000 }) {
+			start = System.nanoTime();
+			AVLTree branch = tree.fork();
+			long forked = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (int i = 0; i < k; i++) {
+				if (rnd.nextBoolean())
+					branch.insert(rnd.nextInt(2 * n) | 1, "w");	// odd keys are new
+				else
+					branch.delete(rnd.nextInt(n) * 2);
+			}
+			long updates = (System.nanoTime() - start) / k;
+			Set<AVLTree.IAVLNode> branchNodes = Collections.newSetFromMap(new IdentityHashMap<>());
+			collect(branch.getRoot(), branchNodes);
+			branchNodes.removeAll(original);
+			start = System.nanoTime();
+			int changes = tree.diff(branch).size();
+			long diff = System.nanoTime() - start;
+			System.out.println(k + "\t" + forked + "\t" + updates + "\t" + branchNodes.size() + "\t"
+					+ String.format("%.1f", (double) branchNodes.size() / k) + "\t" + String.format("%.1f", diff / 1e6) + "\t" + changes);
+		}
+		AVLTreeValidator.validate(tree);
+		if (tree.size() != n)
+			throw new IllegalStateException("the original changed");
+	}
+
+	private static void collect(AVLTree.IAVLNode x, Set<AVLTree.IAVLNode> nodes) {	// adds the real nodes of the subtree of x
+		while (x.isRealNode()) {
+			nodes.add(x);
+			collect(x.getLeft(), nodes);
+			x = x.getRight();
+		}
+	}
+
+	private interface Op {
+		void apply(int op, int key);	// op is uniform in [0, 4), drawn apart from key so every op sees every key
+	}
+
+	private static long run(int threads, Op op) throws InterruptedException {	// returns operations per second over RUN_MILLIS
+		LongAdder done = new LongAdder();
+		long deadline = System.currentTimeMillis() + RUN_MILLIS;
+		List<Thread> workers = new ArrayList<>();
+		for (int t = 0; t < threads; t++) {
+			Thread worker = new Thread(() -> {
+				ThreadLocalRandom rnd = ThreadLocalRandom.current();
+				long cnt = 0;
+				while ((cnt & 1023) != 0 || System.currentTimeMillis() < deadline) {
+					op.apply(rnd.nextInt(4), rnd.nextInt(KEY_RANGE));
+					cnt++;
+				}
+				done.add(cnt);
+			});
+			workers.add(worker);
+			worker.start();
+		}
+		for (Thread worker : workers)
+			worker.join();
+		return done.sum() * 1000 / RUN_MILLIS;
+	}
+}
@@ -0,0 +1,480 @@
+package src;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ *
+ * AVLTreeFuzzer
+ *
+ * Differential fuzzer for AVLTree and its variants. Runs random sequences of
+ * insert/delete/search/split/join against java.util.TreeMap, validating the tree
+ * after every operation. AVLTree variants also keep a replica in sync through a change feed,
+ * and through diff after splits, and rebuild the tree with the bulk-load constructor.
+ * avl-encoded also checks that the value store holds exactly the distinct values of the tree.
+ * avl-fork forks the tree (with a value store) every few operations, goes on with one side and checks
+ * that the other never changes. Dropped forks are released, and all of them now and then, so the tree
+ * takes its shared nodes back, and the store must then hold the values of the live trees only.
+ * avl-large bulk-loads and exports trees of up to 100000 keys, beyond the 8192-entry slices
+ * that BulkBuild and InOrderExport run in parallel, and checks them against the input arrays.
+ * A failing sequence is shrunk to a minimal one and printed.
+ * Usage: java src.AVLTreeFuzzer [avl|avl-compact|avl-encoded|avl-interval|avl-fork|avl-large|wavl|all] [cases] [ops per case] [key range]
+ *
+ */
+
+public class AVLTreeFuzzer {
+
+	private static final int INSERT = 0;
+	private static final int DELETE = 1;
+	private static final int SEARCH = 2;
+	private static final int SPLIT_JOIN = 3;	// split at a key, then join the halves back with it
+	private static final int SPLIT_KEEP = 4;	// split at a key, then keep one half
+	private static final String[] NAMES = { "insert", "delete", "search", "split-join", "split-keep" };
+	private static final long TIMEOUT_MILLIS = 2000;	// a sequence running longer than this is a failure (e.g. a cycle)
+
+	public static void main(String[] args) {
+		String variant = args.length > 0 ? args[0] : "all";
+		int cases = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+		int opsPerCase = args.length > 2 ? Integer.parseInt(args[2]) : 300;
+		int keyRange = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+		List<String> variants = variant.equals("all") ? Arrays.asList("avl", "avl-compact", "avl-encoded", "avl-interval", "avl-fork", "avl-large", "wavl") : Arrays.asList(variant);
+		for (String v : variants) {
+			if (v.equals("avl-large")) {	// no operation sequences, each case is one large tree
+				int large = Math.max(1, cases / 50);
+				for (long seed = 0; seed < large; seed++) {
+					String failure = checkLarge(new Random(seed));
+					if (failure != null) {
+						System.out.println(v + ": seed " + seed + " failed: " + failure);
+						System.exit(1);
+					}
+				}
+				System.out.println(v + ": " + large + " trees passed");
+				continue;
+			}
+			for (long seed = 0; seed < cases; seed++) {
+				List<int[]> ops = generate(new Random(seed), opsPerCase, keyRange);
+				String failure = run(v, ops);
+				if (failure != null) {
+					List<int[]> minimal = shrink(v, ops);
+					System.out.println(v + ": seed " + seed + " failed: " + run(v, minimal));
+					for (int[] op : minimal)
+						System.out.println("  " + NAMES[op[0]] + " " + op[1] + (op[0] >= SPLIT_JOIN ? " " + (op[2] == 0 ? "left" : "right") : ""));
+					System.exit(1);
+				}
+			}
+			System.out.println(v + ": " + cases + " cases of " + opsPerCase + " operations passed");
+		}
+	}
+
+	/**
+	 * public static List<int[]> generate(Random rnd, int n, int keyRange)
+	 * <p>
+	 * Returns n random operations {type, key or rank, side}. Splits pick their key by rank,
+	 * so a sequence stays meaningful after the shrinker removes operations from it.
+	 */
+	public static List<int[]> generate(Random rnd, int n, int keyRange) {
+		List<int[]> ops = new ArrayList<>(n);
+		for (int i = 0; i < n; i++) {
+			int p = rnd.nextInt(100);
+			int type = p < 45 ? INSERT : p < 80 ? DELETE : p < 90 ? SEARCH : p < 97 ? SPLIT_JOIN : SPLIT_KEEP;
+			ops.add(new int[] { type, type >= SPLIT_JOIN ? rnd.nextInt(Integer.MAX_VALUE) : rnd.nextInt(keyRange), rnd.nextInt(2) });
+		}
+		return ops;
+	}
+
+	/**
+	 * public static String run(String variant, List<int[]> ops)
+	 * <p>
+	 * Runs ops on a fresh tree of the given variant and on a TreeMap.
+	 * Returns a description of the first failure, or null if every operation matched.
+	 */
+	public static String run(String variant, List<int[]> ops) {
+		String[] failure = new String[1];
+		Thread runner = new Thread(() -> failure[0] = runDirect(variant, ops));
+		runner.setDaemon(true);	// a hung sequence is abandoned, not killed
+		runner.start();
+		try {
+			runner.join(TIMEOUT_MILLIS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (runner.isAlive())
+			return "timed out";
+		return failure[0];
+	}
+
+	/**
+	 * public static String checkLarge(Random rnd)
+	 * <p>
+	 * Bulk-loads a random tree of up to 100000 keys in both layouts, checks it and its exports
+	 * against the input, then deletes a tenth of the keys (so the tree is no longer perfectly
+	 * balanced) and checks the exports again. Returns a description of the failure, or null.
+	 */
+	public static String checkLarge(Random rnd) {
+		int n = rnd.nextInt(100_000);
+		int[] keys = new int[n];
+		String[] info = new String[n];
+		for (int j = 0, k = 0; j < n; j++) {
+			k += 1 + rnd.nextInt(3);
+			keys[j] = k;
+			info[j] = "v" + k;
+		}
+		for (boolean compact : new boolean[] { false, true }) {
+			try {
+				AVLTree t = new AVLTree(compact, null, keys, info);
+				AVLTreeValidator.validate(t);
+				if (!Arrays.equals(t.keysToArray(), keys) || !Arrays.equals(t.infoToArray(), info))
+					return (compact ? "compact " : "") + "bulk load of " + n + " keys exports other arrays";
+				TreeMap<Integer, String> expected = new TreeMap<>();
+				for (int j = 0; j < n; j++)
+					expected.put(keys[j], info[j]);
+				for (int j = 0; j < n / 10; j++) {
+					int k = keys[rnd.nextInt(n)];
+					if ((t.delete(k) == -1) == expected.containsKey(k))
+						return "delete " + k + " after a bulk load of " + n + " keys";
+					expected.remove(k);
+				}
+				AVLTreeValidator.validate(t);
+				int[] left = expected.keySet().stream().mapToInt(Integer::intValue).toArray();
+				if (!Arrays.equals(t.keysToArray(), left) || !Arrays.equals(t.infoToArray(), expected.values().toArray(new String[0])))
+					return (compact ? "compact " : "") + "export after deletes from " + n + " keys differs";
+			} catch (RuntimeException e) {
+				return e.toString();
+			}
+		}
+		return null;
+	}
+
+	private static String runDirect(String variant, List<int[]> ops) {
+		Target t = variant.equals("wavl") ? new WAVLTarget() : new AVLTarget(variant.equals("avl-compact"), variant.equals("avl-encoded") || variant.equals("avl-fork"), variant.equals("avl-interval"), variant.equals("avl-fork"));
+		TreeMap<Integer, String> expected = new TreeMap<>();
+		int step = 0;
+		try {
+			for (int[] op : ops) {
+				int k = op[1];
+				String info = "v" + step;
+				switch (op[0]) {
+					case INSERT:
+						int inserted = t.insert(k, info);
+						if ((inserted == -1) != expected.containsKey(k))
+							return "step " + step + ": insert " + k + " returned " + inserted;
+						expected.putIfAbsent(k, info);
+						break;
+					case DELETE:
+						int deleted = t.delete(k);
+						if ((deleted == -1) != !expected.containsKey(k))
+							return "step " + step + ": delete " + k + " returned " + deleted;
+						expected.remove(k);
+						break;
+					case SEARCH:
+						if (!Objects.equals(t.search(k), expected.get(k)))
+							return "step " + step + ": search " + k + " returned " + t.search(k) + ", expected " + expected.get(k);
+						break;
+					default:
+						if (expected.isEmpty())
+							break;
+						int x = new ArrayList<>(expected.keySet()).get(k % expected.size());
+						if (op[0] == SPLIT_JOIN) {
+							t.splitJoin(x, info, op[2] == 0);
+							expected.put(x, info);
+						} else {
+							t.splitKeep(x, op[2] == 0);
+							Map<Integer, String> half = op[2] == 0 ? expected.headMap(x) : expected.tailMap(x, false);
+							expected = new TreeMap<>(half);
+						}
+				}
+				String mismatch = compare(t, expected);
+				if (mismatch != null)
+					return "step " + step + " (" + NAMES[op[0]] + " " + k + "): " + mismatch;
+				step++;
+			}
+		} catch (RuntimeException | StackOverflowError e) {
+			return "step " + step + ": " + e;
+		}
+		return null;
+	}
+
+	private static String compare(Target t, TreeMap<Integer, String> expected) {	// validates t and compares it with expected
+		t.validate();
+		if (t.size() != expected.size())
+			return "size " + t.size() + ", expected " + expected.size();
+		if (!Objects.equals(t.min(), expected.isEmpty() ? null : expected.firstEntry().getValue()))
+			return "min " + t.min();
+		if (!Objects.equals(t.max(), expected.isEmpty() ? null : expected.lastEntry().getValue()))
+			return "max " + t.max();
+		int[] keys = expected.keySet().stream().mapToInt(Integer::intValue).toArray();
+		if (!Arrays.equals(t.keysToArray(), keys))
+			return "keysToArray " + Arrays.toString(t.keysToArray()) + ", expected " + Arrays.toString(keys);
+		if (!Arrays.equals(t.infoToArray(), expected.values().toArray(new String[0])))
+			return "infoToArray " + Arrays.toString(t.infoToArray());
+		return null;
+	}
+
+	/**
+	 * public static List<int[]> shrink(String variant, List<int[]> ops)
+	 * <p>
+	 * Removes chunks of operations, halving the chunk size, as long as the sequence still fails.
+	 * Returns a sequence where removing any single operation makes it pass.
+	 */
+	public static List<int[]> shrink(String variant, List<int[]> ops) {
+		List<int[]> current = ops;
+		int chunk = Math.max(1, current.size() / 2);
+		while (true) {
+			boolean removed = false;
+			for (int i = 0; i < current.size(); ) {
+				List<int[]> candidate = new ArrayList<>(current.subList(0, i));
+				candidate.addAll(current.subList(Math.min(current.size(), i + chunk), current.size()));
+				if (run(variant, candidate) != null) {
+					current = candidate;
+					removed = true;
+				} else {
+					i += chunk;
+				}
+			}
+			if (!removed) {
+				if (chunk == 1)
+					return current;
+				chunk /= 2;
+			}
+		}
+	}
+
+	private interface Target {	// the operations under test, as implemented by one variant
+		int insert(int k, String i);
+		int delete(int k);
+		String search(int k);
+		int size();
+		String min();
+		String max();
+		int[] keysToArray();
+		String[] infoToArray();
+		void splitJoin(int x, String info, boolean joinIntoLeft);
+		void splitKeep(int x, boolean keepLeft);
+		void validate();
+	}
+
+	private abstract static class TreeTarget<T extends IAVLTree<T>> implements Target {	// the operations every tree has, through IAVLTree
+		T t;
+
+		TreeTarget(T t) {
+			this.t = t;
+		}
+
+		abstract AVLTree.IAVLNode newNode(int x, String info);	// a node for t to join
+
+		public int insert(int k, String i) {
+			return this.t.insert(k, i);
+		}
+		public int delete(int k) {
+			return this.t.delete(k);
+		}
+		public String search(int k) {
+			return this.t.search(k);
+		}
+		public int size() {
+			return this.t.size();
+		}
+		public String min() {
+			return this.t.min();
+		}
+		public String max() {
+			return this.t.max();
+		}
+		public int[] keysToArray() {
+			return this.t.keysToArray();
+		}
+		public String[] infoToArray() {
+			return this.t.infoToArray();
+		}
+		public void splitJoin(int x, String info, boolean joinIntoLeft) {
+			T[] halves = this.t.split(x);
+			if (!this.t.empty())	// the nodes moved to the halves
+				throw new IllegalStateException("split left " + this.t.size() + " keys in the tree");
+			int into = joinIntoLeft ? 0 : 1;
+			halves[into].join(this.newNode(x, info), halves[1 - into]);
+			this.t = halves[into];
+		}
+		public void splitKeep(int x, boolean keepLeft) {
+			this.t = this.t.split(x)[keepLeft ? 0 : 1];
+		}
+	}
+
+	private static class AVLTarget extends TreeTarget<AVLTree> {
+		private final boolean compact;
+		private final boolean interval;	// intervals [k, end(k)], checked with overlapping queries
+		private final AVLValueStore values;	// null unless the tree encodes its info
+		private final AVLChangeFeed feed = new AVLChangeFeed(4);
+		private final AVLChangeFeed.Consumer consumer = this.feed.register();
+		private final AVLTree replica;	// follows t through the feed, and through diff after splits
+		private final boolean forking;
+		private final List<AVLTree> forks = new ArrayList<>();	// the last few sides left behind by fork(), with their contents
+		private final List<int[]> forkKeys = new ArrayList<>();
+		private final List<String[]> forkInfo = new ArrayList<>();
+		private int validations;
+
+		AVLTarget(boolean compact, boolean encoded, boolean interval, boolean forking) {
+			this(compact, encoded ? new AVLValueStore() : null, interval, forking);
+		}
+
+		private AVLTarget(boolean compact, AVLValueStore values, boolean interval, boolean forking) {
+			super(interval ? AVLTree.intervalTree() : new AVLTree(compact, values));
+			this.compact = compact;
+			this.interval = interval;
+			this.forking = forking;
+			this.values = values;
+			this.t.setChangeFeed(this.feed);
+			this.replica = interval ? AVLTree.intervalTree() : new AVLTree();
+		}
+
+		private static int end(int k) {	// end of the interval starting at k, a function of k so split-join can rebuild it
+			return k + (k * 7 % 13);
+		}
+
+		@Override
+		public int insert(int k, String i) {
+			return this.interval ? this.t.insert(k, end(k), i) : this.t.insert(k, i);
+		}
+		AVLTree.IAVLNode newNode(int x, String info) {
+			AVLTree.IAVLNode node;
+			if (this.interval)
+				node = this.t.new IntervalAVLNode(x, end(x), info, this.t.new AVLNode(-1, null, null, null, null, -1, false),
+						this.t.new AVLNode(-1, null, null, null, null, -1, false), null);
+			else if (this.values != null)
+				node = this.t.new EncodedAVLNode(x, this.values.encode(info), this.t.new AVLNode(-1, null, null, null, null, -1, false),
+						this.t.new AVLNode(-1, null, null, null, null, -1, false), null);
+			else if (this.compact)
+				node = new AVLTree.CompactAVLNode(x, info, new AVLTree.ExternalLeaf(null), new AVLTree.ExternalLeaf(null), null);
+			else
+				node = this.t.new AVLNode(x, info, this.t.new AVLNode(-1, null, null, null, null, -1, false),
+						this.t.new AVLNode(-1, null, null, null, null, -1, false), null, 0, true);
+			return node;
+		}
+		@Override
+		public void splitJoin(int x, String info, boolean joinIntoLeft) {
+			super.splitJoin(x, info, joinIntoLeft);
+			this.resync();
+		}
+		@Override
+		public void splitKeep(int x, boolean keepLeft) {
+			AVLTree[] halves = this.t.split(x);
+			this.t = halves[keepLeft ? 0 : 1];
+			halves[keepLeft ? 1 : 0].release();
+			this.resync();
+		}
+		public void validate() {
+			AVLTreeValidator.validate(this.t);
+			for (AVLChangeFeed.Change c = this.consumer.poll(); c != null; c = this.consumer.poll())
+				c.applyTo(this.replica);
+			AVLTreeValidator.validate(this.replica);
+			if (!Arrays.equals(this.replica.keysToArray(), this.t.keysToArray()) || !Arrays.equals(this.replica.infoToArray(), this.t.infoToArray()))
+				throw new IllegalStateException("replica " + Arrays.toString(this.replica.keysToArray()) + " is out of sync");
+			if (!this.t.diff(this.replica).isEmpty())
+				throw new IllegalStateException("diff of equal trees is " + this.t.diff(this.replica));
+			if (this.interval) {
+				this.checkOverlapping();
+			} else {
+				AVLTree built = new AVLTree(this.compact, this.values, this.t.keysToArray(), this.t.infoToArray());
+				AVLTreeValidator.validate(built);
+				if (!this.t.diff(built).isEmpty())
+					throw new IllegalStateException("bulk built tree differs by " + this.t.diff(built));
+				built.release();
+			}
+			if (this.values != null)
+				this.checkValueCount();
+			if (this.forking)
+				this.checkForks();
+		}
+		private void checkForks() {	// the sides left behind are unchanged and diff to t, then fork again every 5 operations
+			for (int j = 0; j < this.forks.size(); j++) {
+				AVLTree f = this.forks.get(j);
+				AVLTreeValidator.validate(f);
+				if (!Arrays.equals(f.keysToArray(), this.forkKeys.get(j)) || !Arrays.equals(f.infoToArray(), this.forkInfo.get(j)))
+					throw new IllegalStateException("fork " + Arrays.toString(this.forkKeys.get(j)) + " changed to " + Arrays.toString(f.keysToArray()));
+				AVLTree patched = new AVLTree(this.forkKeys.get(j), this.forkInfo.get(j));
+				for (AVLChangeFeed.Change c : f.diff(this.t))
+					c.applyTo(patched);
+				if (!Arrays.equals(patched.keysToArray(), this.t.keysToArray()) || !Arrays.equals(patched.infoToArray(), this.t.infoToArray()))
+					throw new IllegalStateException("diff from a fork does not give the tree");
+			}
+			if (++this.validations % 5 != 0)
+				return;
+			if (this.validations % 20 == 0) {	// drop every fork, so t is left alone and takes its shared nodes back
+				for (AVLTree f : this.forks)
+					f.release();
+				this.forks.clear();
+				this.forkKeys.clear();
+				this.forkInfo.clear();
+				return;
+			}
+			AVLTree other = this.t.fork();
+			boolean keepForking = this.validations % 10 == 0;	// alternate which side goes on changing
+			AVLTree left = keepForking ? this.t : other;
+			if (keepForking) {
+				this.t.setChangeFeed(null);
+				other.setChangeFeed(this.feed);
+				this.t = other;
+			}
+			this.forks.add(left);
+			this.forkKeys.add(left.keysToArray());
+			this.forkInfo.add(left.infoToArray());
+			if (this.forks.size() > 3) {
+				this.forks.remove(0).release();
+				this.forkKeys.remove(0);
+				this.forkInfo.remove(0);
+			}
+		}
+		private void checkValueCount() {	// the store holds the values of the live nodes and nothing else
+			Set<String> live = new HashSet<>(Arrays.asList(this.t.infoToArray()));
+			for (AVLTree f : this.forks)
+				live.addAll(Arrays.asList(f.infoToArray()));
+			if (this.values.count() != live.size())
+				throw new IllegalStateException("value store holds " + this.values.count() + " values, the live trees " + live.size());
+		}
+		private void checkOverlapping() {	// every query window around the keys, against a scan of all intervals
+			int[] keys = this.t.keysToArray();
+			for (int lo = -2; lo < 120; lo += 3) {
+				for (int width = 0; width < 8; width += 7) {
+					List<Integer> expected = new ArrayList<>();
+					for (int k : keys) {
+						if (k <= lo + width && end(k) >= lo)
+							expected.add(k);
+					}
+					List<Integer> found = new ArrayList<>();
+					for (AVLTree.IntervalAVLNode node : this.t.overlapping(lo, lo + width))
+						found.add(node.getKey());
+					if (!found.equals(expected))
+						throw new IllegalStateException("overlapping(" + lo + ", " + (lo + width) + ") is " + found + ", expected " + expected);
+				}
+			}
+		}
+		private void resync() {	// split does not publish, so bring the replica up to date with diff
+			for (AVLChangeFeed.Change c : this.replica.diff(this.t))
+				c.applyTo(this.replica);
+			this.t.setChangeFeed(this.feed);
+			this.consumer.seek(this.feed.nextSequence());
+		}
+	}
+
+	private static class WAVLTarget extends TreeTarget<WAVLTree> {
+		private final AVLTree helper = new AVLTree();
+
+		WAVLTarget() {
+			super(new WAVLTree());
+		}
+
+		AVLTree.IAVLNode newNode(int x, String info) {	// join copies key and info out of any IAVLNode
+			return this.helper.new AVLNode(x, info, this.helper.new AVLNode(-1, null, null, null, null, -1, false),
+					this.helper.new AVLNode(-1, null, null, null, null, -1, false), null, 0, true);
+		}
+		public void validate() {
+			AVLTreeValidator.validate(this.t);
+		}
+	}
+}
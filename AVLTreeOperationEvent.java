@@ -0,0 +1,63 @@
+package src;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ *
+ * AVLTreeOperationEvent
+ *
+ * Java Flight Recorder event for one AVLTree operation: insert, delete, split, join,
+ * keysToArray or infoToArray. Only operations slower than the threshold (1 ms unless
+ * the recording sets another one for src.AVLTreeOperation) are written. With no
+ * recording running, begin/end/shouldCommit are no-ops that the JIT removes.
+ *
+ */
+
+@Name("src.AVLTreeOperation")
+@Label("AVL Tree Operation")
+@Category("AVL Tree")
+@Description("An AVLTree operation that took longer than the threshold")
+@Threshold("1 ms")
+public class AVLTreeOperationEvent extends Event {
+
+	@Label("Operation")
+	String operation;
+
+	@Label("Key")
+	@Description("The key of the operation, 0 for exports")
+	int key;
+
+	@Label("Tree Size")
+	@Description("Number of nodes in the tree before the operation")
+	int treeSize;
+
+	@Label("Height")
+	@Description("Height of the tree before the operation")
+	int height;
+
+	@Label("Rotations")
+	@Description("Single rotations done by the operation")
+	long rotations;
+
+	/**
+	 * void commit(String operation, int key, int treeSize, int height, long rotations)
+	 * <p>
+	 * Ends the event and writes it with the given fields, if it is enabled and slower than the threshold.
+	 */
+	void commit(String operation, int key, int treeSize, int height, long rotations) {
+		this.end();
+		if (!this.shouldCommit())
+			return;
+		this.operation = operation;
+		this.key = key;
+		this.treeSize = treeSize;
+		this.height = height;
+		this.rotations = rotations;
+		this.commit();
+	}
+}
@@ -0,0 +1,139 @@
+package src;
+
+import src.AVLTree.IAVLNode;
+
+/**
+ *
+ * AVLTreeValidator
+ *
+ * O(n) invariant checks for AVLTree and WAVLTree. Every check walks the tree once
+ * and throws IllegalStateException describing the first broken invariant:
+ * key order, parent links, heights (or ranks), balance, subtree sizes and
+ * (for AVLTree) the cached min/max pointers, the largest ends of interval trees and
+ * the parents of external leaves, which insert relies on. Parent links are not checked
+ * below nodes shared with a fork, whose parent pointers are meaningless.
+ *
+ */
+
+public final class AVLTreeValidator {
+
+	private AVLTreeValidator() {
+	}
+
+	/**
+	 * public static void validate(AVLTree t)
+	 * <p>
+	 * Checks that t is a valid AVL tree: keys are ordered, every son (external leaves included) points to its parent,
+	 * heights are exact, balance factors are in [-1, 1], sizes are exact and every node
+	 * caches the min and max of its subtree (and, in an interval tree, the largest end).
+	 */
+	public static void validate(AVLTree t) {
+		IAVLNode root = t.getRoot();
+		if (root == null)
+			throw new IllegalStateException("root is null");
+		if (!isShared(root) && root.getParent() != null)
+			throw new IllegalStateException("root " + root.getKey() + " has a parent");
+		if (!root.isRealNode()) {
+			checkExternal(root);
+			return;
+		}
+		checkAVL(root, Long.MIN_VALUE, Long.MAX_VALUE, !isShared(root));
+	}
+
+	/**
+	 * public static void validate(WAVLTree t)
+	 * <p>
+	 * Checks that t is a valid weak AVL tree: keys are ordered, every real son points to its parent,
+	 * rank differences are 1 or 2, leaves have rank 0 and sizes are exact.
+	 */
+	public static void validate(WAVLTree t) {
+		IAVLNode root = t.getRoot();
+		if (root.getParent() != null)
+			throw new IllegalStateException("root " + root.getKey() + " has a parent");
+		if (!root.isRealNode()) {
+			checkExternal(root);
+			return;
+		}
+		checkWAVL(root, Long.MIN_VALUE, Long.MAX_VALUE);
+	}
+
+	private static IAVLNode[] checkAVL(IAVLNode x, long lo, long hi, boolean owned) {	// returns {min, max} of the subtree of real node x, owned if neither x nor an ancestor is shared
+		checkNode(x, lo, hi, true, owned);
+		IAVLNode[] left = null;
+		IAVLNode[] right = null;
+		if (x.getLeft().isRealNode())
+			left = checkAVL(x.getLeft(), lo, x.getKey(), owned && !isShared(x.getLeft()));
+		else
+			checkExternal(x.getLeft());
+		if (x.getRight().isRealNode())
+			right = checkAVL(x.getRight(), x.getKey(), hi, owned && !isShared(x.getRight()));
+		else
+			checkExternal(x.getRight());
+		int lh = x.getLeft().getHeight();
+		int rh = x.getRight().getHeight();
+		if (x.getHeight() != Math.max(lh, rh) + 1)
+			throw new IllegalStateException("node " + x.getKey() + " has height " + x.getHeight() + ", sons have " + lh + ", " + rh);
+		if (Math.abs(lh - rh) > 1)
+			throw new IllegalStateException("node " + x.getKey() + " has balance factor " + (lh - rh));
+		IAVLNode min = left == null ? x : left[0];
+		IAVLNode max = right == null ? x : right[1];
+		if (x.getMin() != min)
+			throw new IllegalStateException("node " + x.getKey() + " caches min " + describe(x.getMin()) + ", expected " + min.getKey());
+		if (x.getMax() != max)
+			throw new IllegalStateException("node " + x.getKey() + " caches max " + describe(x.getMax()) + ", expected " + max.getKey());
+		if (x instanceof AVLTree.IntervalAVLNode) {
+			AVLTree.IntervalAVLNode node = (AVLTree.IntervalAVLNode) x;
+			int maxEnd = node.getEnd();
+			if (node.getLeft().isRealNode())
+				maxEnd = Math.max(maxEnd, ((AVLTree.IntervalAVLNode) node.getLeft()).getMaxEnd());
+			if (node.getRight().isRealNode())
+				maxEnd = Math.max(maxEnd, ((AVLTree.IntervalAVLNode) node.getRight()).getMaxEnd());
+			if (node.getMaxEnd() != maxEnd)
+				throw new IllegalStateException("node " + x.getKey() + " has max end " + node.getMaxEnd() + ", expected " + maxEnd);
+		}
+		return new IAVLNode[] { min, max };
+	}
+
+	private static void checkWAVL(IAVLNode x, long lo, long hi) {
+		checkNode(x, lo, hi, false, true);
+		if (x.getLeft().isRealNode())
+			checkWAVL(x.getLeft(), lo, x.getKey());
+		if (x.getRight().isRealNode())
+			checkWAVL(x.getRight(), x.getKey(), hi);
+		int ld = x.getHeight() - x.getLeft().getHeight();
+		int rd = x.getHeight() - x.getRight().getHeight();
+		if (ld < 1 || ld > 2 || rd < 1 || rd > 2)
+			throw new IllegalStateException("node " + x.getKey() + " has rank differences " + ld + ", " + rd);
+		if (!x.getLeft().isRealNode() && !x.getRight().isRealNode() && x.getHeight() != 0)
+			throw new IllegalStateException("leaf " + x.getKey() + " has rank " + x.getHeight());
+	}
+
+	private static void checkNode(IAVLNode x, long lo, long hi, boolean externalParents, boolean owned) {	// checks order, links to sons and size of real node x
+		if (x.getKey() <= lo || x.getKey() >= hi)
+			throw new IllegalStateException("node " + x.getKey() + " is out of order, expected in (" + lo + ", " + hi + ")");
+		if (x.getLeft() == null || x.getRight() == null)
+			throw new IllegalStateException("node " + x.getKey() + " has a null son");
+		if (owned && (externalParents || x.getLeft().isRealNode()) && !isShared(x.getLeft()) && x.getLeft().getParent() != x)
+			throw new IllegalStateException("left son " + x.getLeft().getKey() + " of " + x.getKey() + " points to parent " + describe(x.getLeft().getParent()));
+		if (owned && (externalParents || x.getRight().isRealNode()) && !isShared(x.getRight()) && x.getRight().getParent() != x)
+			throw new IllegalStateException("right son " + x.getRight().getKey() + " of " + x.getKey() + " points to parent " + describe(x.getRight().getParent()));
+		int size = x.getLeft().getSize() + x.getRight().getSize() + 1;
+		if (x.getSize() != size)
+			throw new IllegalStateException("node " + x.getKey() + " has size " + x.getSize() + ", expected " + size);
+	}
+
+	private static void checkExternal(IAVLNode x) {
+		if (x.getHeight() != -1 || x.getSize() != 0 || x.getValue() != null)
+			throw new IllegalStateException("external node has height " + x.getHeight() + ", size " + x.getSize());
+	}
+
+	private static boolean isShared(IAVLNode x) {
+		return x instanceof AVLTree.AVLNode && ((AVLTree.AVLNode) x).isShared();
+	}
+
+	private static String describe(IAVLNode x) {
+		if (x == null)
+			return "null";
+		return x.isRealNode() ? String.valueOf(x.getKey()) : "external";
+	}
+}
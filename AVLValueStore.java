@@ -0,0 +1,212 @@
+package src;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ *
+ * AVLValueStore
+ *
+ * Dictionary-encoded storage for the info strings of AVLTree nodes.
+ * Every distinct value is stored once, as UTF-8 bytes appended to a shared slab,
+ * and is identified by an int id. Equal values get the same id, so nodes holding
+ * repeated values share one copy, and no String object is kept per node.
+ * Values are decoded to a new String on every read.
+ *
+ * Every id counts the nodes holding it: encode and retain add one, release removes one.
+ * An id nobody holds is freed and reused by a later value, and once half of the slab
+ * belongs to freed values, the live ones are moved together into a new slab.
+ * It can be shared by several trees (split keeps it for both halves). AVLTree releases the id
+ * of every node it deletes, and of the nodes of a tree that is released with AVLTree.release().
+ *
+ */
+
+public class AVLValueStore {
+
+	private static final int MIN_SLAB = 1024;
+
+	private byte[] slab = new byte[MIN_SLAB];
+	private int used;	// bytes of the slab written so far, live or freed
+	private int garbage;	// bytes of freed values in the slab
+	private int[] starts = new int[64];	// value id is slab[starts[id], starts[id] + lengths[id]). For a freed id, starts holds the next free id
+	private int[] lengths = new int[64];
+	private int[] hashes = new int[64];	// hash of every value id, kept for rehashing
+	private int[] refs = new int[64];	// number of holders of every id, 0 if it is free
+	private int[] table = new int[128];	// open addressing, id + 1 of every live value, 0 if empty
+	private int ids;	// ids ever handed out, free or not
+	private int freeId = -1;	// head of the free id list
+	private int count;
+
+	/**
+	 * public int encode(String value)
+	 * <p>
+	 * Returns the id of value, adding it to the store if it is not there, and counts one more holder of it.
+	 * null is encoded as -1.
+	 */
+	public int encode(String value) {
+		if (value == null)
+			return -1;
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		int hash = hash(bytes);
+		int mask = this.table.length - 1;
+		for (int i = hash & mask; ; i = (i + 1) & mask) {	// linear probing
+			int id = this.table[i] - 1;
+			if (id == -1)
+				return this.add(bytes, hash, i);
+			if (this.hashes[id] == hash && this.equals(id, bytes)) {
+				this.refs[id]++;
+				return id;
+			}
+		}
+	}
+
+	/**
+	 * public String decode(int id)
+	 * <p>
+	 * Returns the value with the given id, or null if id is -1.
+	 */
+	public String decode(int id) {
+		if (id == -1)
+			return null;
+		return new String(this.slab, this.starts[id], this.lengths[id], StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * public int retain(int id)
+	 * <p>
+	 * Counts one more holder of id, e.g. a copy of a node, and returns id. Does nothing for -1.
+	 */
+	public int retain(int id) {
+		if (id != -1)
+			this.refs[id]++;
+		return id;
+	}
+
+	/**
+	 * public void release(int id)
+	 * <p>
+	 * Counts one holder of id less, e.g. a deleted node. The last release frees the id. Does nothing for -1.
+	 */
+	public void release(int id) {
+		if (id == -1 || --this.refs[id] > 0)
+			return;
+		this.unlink(id);
+		this.garbage += this.lengths[id];
+		this.starts[id] = this.freeId;
+		this.freeId = id;
+		this.count--;
+		if (this.used > MIN_SLAB && 2 * this.garbage > this.used)
+			this.compactSlab();
+	}
+
+	/**
+	 * public int count()
+	 * <p>
+	 * Returns the number of distinct values in the store that are still held.
+	 */
+	public int count() {
+		return this.count;
+	}
+
+	/**
+	 * public long memoryBytes()
+	 * <p>
+	 * Returns the heap bytes of the store: the slab and the per-id and lookup arrays,
+	 * each with a 16 byte array header.
+	 */
+	public long memoryBytes() {
+		return 16 + this.slab.length + 4 * (16 + 4L * this.starts.length) + 16 + 4L * this.table.length;
+	}
+
+	private int add(byte[] bytes, int hash, int slot) {	// stores a new value whose lookup slot is empty
+		int id = this.freeId;
+		if (id != -1) {
+			this.freeId = this.starts[id];
+		} else {
+			id = this.ids++;
+			if (id == this.hashes.length) {	// keep the per-id arrays in bounds
+				int capacity = 2 * this.hashes.length;
+				this.starts = Arrays.copyOf(this.starts, capacity);
+				this.lengths = Arrays.copyOf(this.lengths, capacity);
+				this.hashes = Arrays.copyOf(this.hashes, capacity);
+				this.refs = Arrays.copyOf(this.refs, capacity);
+			}
+		}
+		if (this.used + bytes.length > this.slab.length)
+			this.slab = Arrays.copyOf(this.slab, Math.max(2 * this.slab.length, this.used + bytes.length));
+		System.arraycopy(bytes, 0, this.slab, this.used, bytes.length);
+		this.starts[id] = this.used;
+		this.lengths[id] = bytes.length;
+		this.used += bytes.length;
+		this.hashes[id] = hash;
+		this.refs[id] = 1;
+		this.table[slot] = id + 1;
+		this.count++;
+		if (2 * this.count > this.table.length)	// keep the load factor below 1/2
+			this.rehash();
+		return id;
+	}
+
+	private void unlink(int id) {	// removes id from the lookup table, shifting back later entries of its probe run
+		int mask = this.table.length - 1;
+		int i = this.hashes[id] & mask;
+		while (this.table[i] != id + 1)
+			i = (i + 1) & mask;
+		for (int j = (i + 1) & mask; this.table[j] != 0; j = (j + 1) & mask) {
+			int home = this.hashes[this.table[j] - 1] & mask;
+			if (((j - home) & mask) >= ((j - i) & mask)) {	// the entry at j may move to i without passing its home slot
+				this.table[i] = this.table[j];
+				i = j;
+			}
+		}
+		this.table[i] = 0;
+	}
+
+	private void compactSlab() {	// moves the live values to a new slab, at most twice their size
+		int live = this.used - this.garbage;
+		byte[] moved = new byte[Math.max(MIN_SLAB, 2 * live)];
+		int pos = 0;
+		for (int id = 0; id < this.ids; id++) {
+			if (this.refs[id] == 0)
+				continue;
+			System.arraycopy(this.slab, this.starts[id], moved, pos, this.lengths[id]);
+			this.starts[id] = pos;
+			pos += this.lengths[id];
+		}
+		this.slab = moved;
+		this.used = pos;
+		this.garbage = 0;
+	}
+
+	private void rehash() {
+		int[] grown = new int[2 * this.table.length];
+		int mask = grown.length - 1;
+		for (int id = 0; id < this.ids; id++) {
+			if (this.refs[id] == 0)
+				continue;
+			int i = this.hashes[id] & mask;
+			while (grown[i] != 0)
+				i = (i + 1) & mask;
+			grown[i] = id + 1;
+		}
+		this.table = grown;
+	}
+
+	private boolean equals(int id, byte[] bytes) {	// is the stored value id equal to bytes
+		int from = this.starts[id];
+		if (this.lengths[id] != bytes.length)
+			return false;
+		for (int i = 0; i < bytes.length; i++) {
+			if (this.slab[from + i] != bytes[i])
+				return false;
+		}
+		return true;
+	}
+
+	private static int hash(byte[] bytes) {
+		int h = 1;
+		for (byte b : bytes)
+			h = 31 * h + b;
+		return h ^ (h >>> 16);	// spread high bits into the masked low bits
+	}
+}
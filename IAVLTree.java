@@ -0,0 +1,29 @@
+package src;
+
+import src.AVLTree.IAVLNode;
+
+/**
+ *
+ * IAVLTree
+ *
+ * The map operations shared by the balanced trees of this package, AVLTree and WAVLTree,
+ * so that code can be written once for both. T is the implementing class itself,
+ * which split returns and join takes.
+ *
+ */
+
+public interface IAVLTree<T extends IAVLTree<T>> {
+	public boolean empty(); // Returns true if and only if the tree is empty.
+	public String search(int k); // Returns the info of key k, or null if k is not in the tree.
+	public int insert(int k, String i); // Inserts key k with info i. Returns the number of re-balancing operations, or -1 if k exists.
+	public int delete(int k); // Deletes key k. Returns the number of re-balancing operations, or -1 if k is not in the tree.
+	public String min(); // Returns the info of the smallest key, or null if the tree is empty.
+	public String max(); // Returns the info of the largest key, or null if the tree is empty.
+	public int[] keysToArray(); // Returns the keys in ascending order.
+	public String[] infoToArray(); // Returns the info of every key, ordered by key.
+	public int size(); // Returns the number of keys.
+	public IAVLNode getRoot(); // Returns the root, an external node if the tree is empty.
+	public long getRotationCount(); // Returns the number of single rotations done so far.
+	public T[] split(int x); // Splits around key x, which must be in the tree: [keys < x, keys > x]. The tree is left empty.
+	public int join(IAVLNode x, T t); // Joins x and t into the tree, where keys(t) < x < keys() or keys(t) > x > keys().
+}
@@ -0,0 +1,409 @@
+package src;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ *
+ * ShardedAVLTree
+ *
+ * A map of distinct integer keys and info, partitioned by key range
+ * over several AVLTree shards. Shard i holds the keys in [bounds[i], bounds[i+1]),
+ * and every shard has its own lock, so writers to different ranges run in parallel.
+ * A shard that grows much larger than the others hands half of its keys to a
+ * neighbour shard, using split and join. Single-key operations only read the shard
+ * boundaries optimistically, and take the layout lock only if they raced with such a move.
+ *
+ */
+
+public class ShardedAVLTree {
+
+	private static final int MIN_HOT_SIZE = 1024;	// a smaller shard is never hot: moving a few keys is not worth stopping every shard
+
+	private final StampedLock layoutLock = new StampedLock();	// write-locked only while shard boundaries move
+	private final LongAdder size = new LongAdder();	// striped, so writers to different shards do not contend on it
+	private final double hotFactor;
+	private final int[] bounds;	// bounds[i] = smallest key routed to shard i, bounds[0] = Integer.MIN_VALUE
+	private final AVLTree[] shards;
+	private final ReentrantReadWriteLock[] locks;
+
+	/**
+	 * public ShardedAVLTree(int shardCount, int lowKey, int highKey)
+	 * <p>
+	 * Creates an empty map with shardCount shards, splitting [lowKey, highKey] into equal ranges.
+	 * Keys outside of [lowKey, highKey] are routed to the first or last shard.
+	 * A shard is rebalanced once it holds more than twice the average number of keys, and at least 1024 keys.
+	 */
+	public ShardedAVLTree(int shardCount, int lowKey, int highKey) {
+		this(shardCount, lowKey, highKey, 2.0);
+	}
+
+	/**
+	 * public ShardedAVLTree(int shardCount, int lowKey, int highKey, double hotFactor)
+	 * <p>
+	 * Same as above, but a shard is rebalanced once it holds more than hotFactor times the average number of keys
+	 * (and at least 1024 keys).
+	 */
+	public ShardedAVLTree(int shardCount, int lowKey, int highKey, double hotFactor) {
+		if (shardCount < 1 || lowKey > highKey || hotFactor <= 1.0)
+			throw new IllegalArgumentException();
+		this.hotFactor = hotFactor;
+		this.bounds = new int[shardCount];
+		this.shards = new AVLTree[shardCount];
+		this.locks = new ReentrantReadWriteLock[shardCount];
+		long width = ((long) highKey - lowKey + 1) / shardCount;	// range covered by every shard
+		for (int i = 0; i < shardCount; i++) {
+			this.bounds[i] = i == 0 ? Integer.MIN_VALUE : (int) (lowKey + width * i);
+			this.shards[i] = new AVLTree();
+			this.locks[i] = new ReentrantReadWriteLock();
+		}
+	}
+
+	/**
+	 * public boolean empty()
+	 * <p>
+	 * Returns true if and only if the map is empty.
+	 */
+	public boolean empty() {
+		return this.size.sum() == 0;
+	}
+
+	/**
+	 * public int size()
+	 * <p>
+	 * Returns the number of keys in the map. Operations still in progress may or may not be counted.
+	 */
+	public int size() {
+		return (int) this.size.sum();
+	}
+
+	/**
+	 * public int shardCount()
+	 * <p>
+	 * Returns the number of shards.
+	 */
+	public int shardCount() {
+		return this.shards.length;
+	}
+
+	/**
+	 * public String search(int k)
+	 * <p>
+	 * Returns the info of an item with key k if it exists in the map,
+	 * otherwise, returns null.
+	 */
+	public String search(int k) {
+		int i = this.lockShardOf(k, false);
+		try {
+			return this.shards[i].search(k);
+		} finally {
+			this.locks[i].readLock().unlock();
+		}
+	}
+
+	/**
+	 * public int insert(int k, String i)
+	 * <p>
+	 * Inserts an item with key k and info i to the shard owning k.
+	 * Returns the number of re-balancing operations done by the shard, or -1 if key k already exists.
+	 */
+	public int insert(int k, String info) {
+		int ret;
+		int shardSize;
+		int i = this.lockShardOf(k, true);
+		try {
+			ret = this.shards[i].insert(k, info);
+			shardSize = this.shards[i].size();
+		} finally {
+			this.locks[i].writeLock().unlock();
+		}
+		if (ret == -1)
+			return ret;
+		this.size.increment();
+		if (this.isHot(shardSize))
+			this.tryRebalance();
+		return ret;
+	}
+
+	/**
+	 * public int delete(int k)
+	 * <p>
+	 * Deletes an item with key k from the shard owning k, if it is there.
+	 * Returns the number of re-balancing operations done by the shard, or -1 if key k was not found.
+	 */
+	public int delete(int k) {
+		int i = this.lockShardOf(k, true);
+		try {
+			int ret = this.shards[i].delete(k);
+			if (ret != -1)
+				this.size.decrement();
+			return ret;
+		} finally {
+			this.locks[i].writeLock().unlock();
+		}
+	}
+
+	/**
+	 * public String min()
+	 * <p>
+	 * Returns the info of the item with the smallest key in the map,
+	 * or null if the map is empty.
+	 */
+	public String min() {
+		long stamp = this.layoutLock.readLock();
+		try {
+			for (int i = 0; i < this.shards.length; i++) {	// first non-empty shard holds the minimum
+				this.locks[i].readLock().lock();
+				try {
+					if (!this.shards[i].empty())
+						return this.shards[i].min();
+				} finally {
+					this.locks[i].readLock().unlock();
+				}
+			}
+			return null;
+		} finally {
+			this.layoutLock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * public String max()
+	 * <p>
+	 * Returns the info of the item with the largest key in the map,
+	 * or null if the map is empty.
+	 */
+	public String max() {
+		long stamp = this.layoutLock.readLock();
+		try {
+			for (int i = this.shards.length - 1; i >= 0; i--) {	// last non-empty shard holds the maximum
+				this.locks[i].readLock().lock();
+				try {
+					if (!this.shards[i].empty())
+						return this.shards[i].max();
+				} finally {
+					this.locks[i].readLock().unlock();
+				}
+			}
+			return null;
+		} finally {
+			this.layoutLock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * public int[] keysToArray()
+	 * <p>
+	 * Returns a sorted array which contains all keys in the map.
+	 * The shards are read-locked together, so the result is a consistent snapshot.
+	 */
+	public int[] keysToArray() {
+		long stamp = this.layoutLock.readLock();
+		this.lockAllShards();
+		try {
+			int n = 0;
+			for (AVLTree shard : this.shards)
+				n += shard.size();
+			int[] keys = new int[n];
+			int pos = 0;
+			for (AVLTree shard : this.shards) {	// shards are ordered by range, so concatenation is a merge
+				int[] part = shard.keysToArray();
+				System.arraycopy(part, 0, keys, pos, part.length);
+				pos += part.length;
+			}
+			return keys;
+		} finally {
+			this.unlockAllShards();
+			this.layoutLock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * public String[] infoToArray()
+	 * <p>
+	 * Returns an array which contains all info in the map, sorted by their respective keys.
+	 * The shards are read-locked together, so the result is a consistent snapshot.
+	 */
+	public String[] infoToArray() {
+		long stamp = this.layoutLock.readLock();
+		this.lockAllShards();
+		try {
+			int n = 0;
+			for (AVLTree shard : this.shards)
+				n += shard.size();
+			String[] values = new String[n];
+			int pos = 0;
+			for (AVLTree shard : this.shards) {
+				String[] part = shard.infoToArray();
+				System.arraycopy(part, 0, values, pos, part.length);
+				pos += part.length;
+			}
+			return values;
+		} finally {
+			this.unlockAllShards();
+			this.layoutLock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * public int[] shardSizes()
+	 * <p>
+	 * Returns the number of keys in every shard, ordered by key range.
+	 */
+	public int[] shardSizes() {
+		long stamp = this.layoutLock.readLock();
+		this.lockAllShards();
+		try {
+			int[] sizes = new int[this.shards.length];
+			for (int i = 0; i < sizes.length; i++)
+				sizes[i] = this.shards[i].size();
+			return sizes;
+		} finally {
+			this.unlockAllShards();
+			this.layoutLock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * public boolean rebalance()
+	 * <p>
+	 * Moves half of the largest shard to its smaller neighbour, if the largest shard is hot.
+	 * Blocks all operations while boundaries move. Returns true if a boundary was moved.
+	 */
+	public boolean rebalance() {
+		long stamp = this.layoutLock.writeLock();
+		try {
+			return this.moveBoundary();
+		} finally {
+			this.layoutLock.unlockWrite(stamp);
+		}
+	}
+
+	private boolean isHot(int shardSize) {	// a shard of this size is worth splitting
+		return shardSize >= MIN_HOT_SIZE && shardSize > this.hotFactor * this.size.sum() / this.shards.length;
+	}
+
+	private void tryRebalance() {	// rebalance unless another writer is already doing so
+		long stamp = this.layoutLock.tryWriteLock();
+		if (stamp == 0)
+			return;
+		try {
+			this.moveBoundary();
+		} finally {
+			this.layoutLock.unlockWrite(stamp);
+		}
+	}
+
+	private boolean moveBoundary() {	// requires the layout write lock, and waits out single-key operations that validated before it
+		for (ReentrantReadWriteLock lock : this.locks)
+			lock.writeLock().lock();
+		try {
+			return this.moveBoundaryLocked();
+		} finally {
+			for (ReentrantReadWriteLock lock : this.locks)
+				lock.writeLock().unlock();
+		}
+	}
+
+	private boolean moveBoundaryLocked() {	// requires the layout write lock and every shard write lock, so no shard is in use
+		int n = this.shards.length;
+		if (n == 1)
+			return false;
+		int hot = 0;
+		for (int i = 1; i < n; i++) {	// find the largest shard
+			if (this.shards[i].size() > this.shards[hot].size())
+				hot = i;
+		}
+		AVLTree tree = this.shards[hot];
+		if (!this.isHot(tree.size()))
+			return false;
+		boolean toRight = hot == 0 || (hot < n - 1 && this.shards[hot + 1].size() < this.shards[hot - 1].size());
+		AVLTree.IAVLNode median = select(tree.getRoot(), tree.size() / 2);
+		int m = median.getKey();
+		String info = median.getValue();
+		AVLTree[] halves = tree.split(m);	// halves[0] < m < halves[1]
+		halves[1].insert(m, info);	// m becomes the smallest key of the upper half
+		if (toRight) {	// upper half moves to the right neighbour, whose lower bound becomes m
+			this.shards[hot] = halves[0];
+			this.shards[hot + 1] = concat(halves[1], this.shards[hot + 1]);
+			this.bounds[hot + 1] = m;
+		} else {	// lower half moves to the left neighbour, and the hot shard now starts at m
+			this.shards[hot - 1] = concat(this.shards[hot - 1], halves[0]);
+			this.shards[hot] = halves[1];
+			this.bounds[hot] = m;
+		}
+		return true;
+	}
+
+	private int lockShardOf(int k, boolean write) {	// locks the shard owning k and returns its index
+		long stamp = this.layoutLock.tryOptimisticRead();
+		if (stamp != 0) {
+			int i = this.shardOf(k);	// may read bounds mid-move, but always returns a valid index
+			Lock lock = write ? this.locks[i].writeLock() : this.locks[i].readLock();
+			lock.lock();
+			if (this.layoutLock.validate(stamp))	// no move started before we held the shard, and a new one waits for it
+				return i;
+			lock.unlock();
+		}
+		long read = this.layoutLock.readLock();	// raced with a move: route under the layout lock
+		try {
+			int i = this.shardOf(k);
+			(write ? this.locks[i].writeLock() : this.locks[i].readLock()).lock();
+			return i;
+		} finally {
+			this.layoutLock.unlockRead(read);
+		}
+	}
+
+	private int shardOf(int k) {	// binary search for the last shard whose lower bound is <= k
+		int lo = 0;
+		int hi = this.bounds.length - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (this.bounds[mid] <= k)
+				lo = mid;
+			else
+				hi = mid - 1;
+		}
+		return lo;
+	}
+
+	private void lockAllShards() {	// always in index order, so multi-shard readers never deadlock
+		for (ReentrantReadWriteLock lock : this.locks)
+			lock.readLock().lock();
+	}
+
+	private void unlockAllShards() {
+		for (ReentrantReadWriteLock lock : this.locks)
+			lock.readLock().unlock();
+	}
+
+	private static AVLTree.IAVLNode select(AVLTree.IAVLNode x, int rank) {	// returns the node with exactly rank smaller keys in the subtree of x
+		while (x.getLeft().getSize() != rank) {
+			if (rank < x.getLeft().getSize()) {
+				x = x.getLeft();
+			} else {
+				rank -= x.getLeft().getSize() + 1;
+				x = x.getRight();
+			}
+		}
+		return x;
+	}
+
+	private static AVLTree concat(AVLTree t1, AVLTree t2) {	// precondition: keys(t1) < keys(t2). Joins t2 into t1 through the minimum of t2
+		if (t2.empty())
+			return t1;
+		if (t1.empty())
+			return t2;
+		AVLTree.IAVLNode min = select(t2.getRoot(), 0);
+		int k = min.getKey();
+		String info = min.getValue();
+		t2.delete(k);
+		AVLTree.IAVLNode x = t1.new AVLNode(k, info, t1.new AVLNode(-1, null, null, null, null, -1, false),
+				t1.new AVLNode(-1, null, null, null, null, -1, false), null, 0, true);
+		t1.join(x, t2);
+		return t1;
+	}
+}
@@ -0,0 +1,350 @@
+package src;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ *
+ * SingleWriterAVLTree
+ *
+ * An AVLTree front-end for many client threads. Clients submit insert/delete/search
+ * commands to a lock-free multi-producer queue and get futures back. One writer thread
+ * applies the commands in batches, so neither the tree nor the queue is ever locked.
+ * The writer parks when the queue is empty, and a client unparks it only if it is parked.
+ * Every future is completed by a task of its own on an executor, so stages that depend
+ * on it never run on the writer thread, and may wait for other commands or close the tree.
+ * Reads that may be slightly stale are served from a published snapshot without queueing.
+ *
+ */
+
+public class SingleWriterAVLTree implements AutoCloseable {
+
+	private static final int INSERT = 0;
+	private static final int DELETE = 1;
+	private static final int SEARCH = 2;
+	private static final int STOP = 3;
+	private static final long SNAPSHOT_MAX_AGE_NANOS = 10_000_000;	// a changed tree is republished at most every 10ms...
+	private static final int SNAPSHOT_COST_FACTOR = 10;	// ...or every 10 copy times, so copying takes at most 1/10 of the writer
+
+	private final AVLTree tree = new AVLTree();
+	private final ConcurrentLinkedQueue<Command> queue = new ConcurrentLinkedQueue<>();
+	private final int maxBatch;
+	private final Executor completions;
+	private final Thread writer;
+	private volatile boolean parked;	// the writer found the queue empty and is parking, clients must unpark it
+	private volatile boolean closed;
+	private volatile boolean stopped;	// the writer has stopped, clients must fail what they queue
+	private volatile Snapshot snapshot = new Snapshot(new int[0], new String[0]);
+
+	private volatile long commands;	// metrics - written only by the writer thread
+	private volatile long batches;
+	private volatile long maxBatchSize;
+	private volatile long queueNanos;
+	private volatile long maxQueueNanos;
+	private final long startNanos = System.nanoTime();
+
+	/**
+	 * public SingleWriterAVLTree(int maxBatch)
+	 * <p>
+	 * Creates an empty tree and starts its writer thread, which applies at most maxBatch commands at a time.
+	 * Futures are completed in the common fork-join pool.
+	 */
+	public SingleWriterAVLTree(int maxBatch) {
+		this(maxBatch, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * public SingleWriterAVLTree(int maxBatch, Executor completions)
+	 * <p>
+	 * Creates an empty tree whose futures are completed by tasks run on completions, one per future.
+	 * An executor that runs tasks in the calling thread puts dependent stages on the writer thread:
+	 * they then must not wait for other commands or close the tree, which would stall the writer for good.
+	 */
+	public SingleWriterAVLTree(int maxBatch, Executor completions) {
+		if (maxBatch < 1 || completions == null)
+			throw new IllegalArgumentException();
+		this.maxBatch = maxBatch;
+		this.completions = completions;
+		this.writer = new Thread(this::writeLoop, "avl-writer");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	/**
+	 * public CompletableFuture<Integer> insert(int k, String i)
+	 * <p>
+	 * Queues an insert of key k with info i. The future completes with the result of AVLTree.insert.
+	 */
+	public CompletableFuture<Integer> insert(int k, String i) {
+		return this.submit(INSERT, k, i);
+	}
+
+	/**
+	 * public CompletableFuture<Integer> delete(int k)
+	 * <p>
+	 * Queues a delete of key k. The future completes with the result of AVLTree.delete.
+	 */
+	public CompletableFuture<Integer> delete(int k) {
+		return this.submit(DELETE, k, null);
+	}
+
+	/**
+	 * public CompletableFuture<String> search(int k)
+	 * <p>
+	 * Queues a search of key k. The future completes with the info of k
+	 * after every command submitted before it was applied.
+	 */
+	public CompletableFuture<String> search(int k) {
+		return this.submit(SEARCH, k, null);
+	}
+
+	/**
+	 * public String searchSnapshot(int k)
+	 * <p>
+	 * Returns the info of key k in the last published snapshot, or null if it is not there.
+	 * Does not wait for the writer. Once the tree changes, the snapshot is republished 10ms after the last one,
+	 * or 10 times the duration of the last copy if that is longer, whether the writer is busy or idle.
+	 * So a snapshot is at most that old (plus one batch), and copying never takes over 1/10 of the writer.
+	 */
+	public String searchSnapshot(int k) {
+		Snapshot s = this.snapshot;
+		int i = Arrays.binarySearch(s.keys, k);
+		return i >= 0 ? s.info[i] : null;
+	}
+
+	/**
+	 * public int snapshotSize()
+	 * <p>
+	 * Returns the number of keys in the last published snapshot.
+	 */
+	public int snapshotSize() {
+		return this.snapshot.keys.length;
+	}
+
+	/**
+	 * public long commandsApplied()
+	 * <p>
+	 * Returns the number of commands applied by the writer so far.
+	 */
+	public long commandsApplied() {
+		return this.commands;
+	}
+
+	/**
+	 * public double throughput()
+	 * <p>
+	 * Returns the number of commands applied per second since the tree was created.
+	 */
+	public double throughput() {
+		return this.commands * 1e9 / Math.max(1, System.nanoTime() - this.startNanos);
+	}
+
+	/**
+	 * public double averageBatchSize()
+	 * <p>
+	 * Returns the average number of commands the writer applied in one batch.
+	 */
+	public double averageBatchSize() {
+		long b = this.batches;
+		return b == 0 ? 0 : (double) this.commands / b;
+	}
+
+	/**
+	 * public long maxBatchSize()
+	 * <p>
+	 * Returns the largest number of commands the writer applied in one batch.
+	 */
+	public long maxBatchSize() {
+		return this.maxBatchSize;
+	}
+
+	/**
+	 * public double averageQueueLatencyNanos()
+	 * <p>
+	 * Returns the average time a command waited between submission and the start of its batch.
+	 */
+	public double averageQueueLatencyNanos() {
+		long c = this.commands;
+		return c == 0 ? 0 : (double) this.queueNanos / c;
+	}
+
+	/**
+	 * public long maxQueueLatencyNanos()
+	 * <p>
+	 * Returns the longest time a command waited between submission and the start of its batch.
+	 */
+	public long maxQueueLatencyNanos() {
+		return this.maxQueueNanos;
+	}
+
+	/**
+	 * public void close()
+	 * <p>
+	 * Applies every command submitted so far, then stops the writer thread.
+	 * Their futures may complete after close returns, as they are completed on the executor.
+	 * Submitting after close throws IllegalStateException, and a command submitted concurrently
+	 * with close is either applied or failed with IllegalStateException.
+	 */
+	@Override
+	public void close() {
+		this.closed = true;
+		this.enqueue(new Command(STOP, 0, null));
+		try {
+			this.writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> CompletableFuture<T> submit(int type, int k, String i) {
+		if (this.closed)
+			throw new IllegalStateException("tree is closed");
+		Command c = new Command(type, k, i);
+		this.enqueue(c);
+		if (this.stopped)	// read after the offer: either the writer's last drain sees c, or we see it stopped and fail c here
+			this.failQueued();
+		return (CompletableFuture<T>) c.future;
+	}
+
+	private void enqueue(Command c) {
+		this.queue.offer(c);
+		if (this.parked)	// read after the offer: either the writer sees c when it rechecks the queue, or we see it parked
+			LockSupport.unpark(this.writer);
+	}
+
+	private void awaitCommand(long deadline) {	// parks the writer until the queue is not empty, or until deadline if it is not 0
+		this.parked = true;
+		while (this.queue.isEmpty()) {
+			if (deadline == 0) {
+				LockSupport.park(this);
+			} else {
+				long left = deadline - System.nanoTime();
+				if (left <= 0)
+					break;
+				LockSupport.parkNanos(this, left);
+			}
+		}
+		this.parked = false;
+	}
+
+	private void writeLoop() {
+		List<Command> batch = new ArrayList<>(this.maxBatch);
+		boolean dirty = false;	// tree changed since the last published snapshot
+		long publishedAt = System.nanoTime();
+		long maxAge = SNAPSHOT_MAX_AGE_NANOS;
+		while (true) {
+			if (dirty && System.nanoTime() - publishedAt > maxAge) {	// busy or idle, the snapshot is only copied once it is old enough
+				long start = System.nanoTime();
+				this.snapshot = new Snapshot(this.tree.keysToArray(), this.tree.infoToArray());
+				publishedAt = System.nanoTime();
+				maxAge = Math.max(SNAPSHOT_MAX_AGE_NANOS, SNAPSHOT_COST_FACTOR * (publishedAt - start));	// copying is O(n), bound its share of the writer
+				dirty = false;
+			}
+			if (this.queue.isEmpty())	// idle: wait for a command, or until a pending snapshot is due
+				this.awaitCommand(dirty ? publishedAt + maxAge + 1 : 0);
+			for (Command c = this.queue.poll(); c != null; c = batch.size() < this.maxBatch ? this.queue.poll() : null)
+				batch.add(c);
+			if (batch.isEmpty())	// woken to publish the snapshot
+				continue;
+			long now = System.nanoTime();
+			for (Command c : batch) {	// queue latency is measured up to the start of the batch
+				long waited = now - c.enqueuedNanos;
+				this.queueNanos += waited;
+				if (waited > this.maxQueueNanos)
+					this.maxQueueNanos = waited;
+			}
+			batch.sort((a, b) -> Integer.compare(a.key, b.key));	// stable, so commands on the same key keep their order
+			boolean stop = false;
+			for (Command c : batch) {	// consecutive keys reuse the cached top of the search path
+				if (c.type == STOP) {
+					stop = true;
+					continue;
+				}
+				try {
+					if (c.type == INSERT) {
+						int ret = this.tree.insert(c.key, c.info);
+						dirty |= ret != -1;
+						c.result = ret;
+					} else if (c.type == DELETE) {
+						int ret = this.tree.delete(c.key);
+						dirty |= ret != -1;
+						c.result = ret;
+					} else {
+						c.result = this.tree.search(c.key);
+					}
+				} catch (RuntimeException e) {	// fail this command only, the writer keeps running
+					c.error = e;
+				}
+			}
+			this.commands += stop ? batch.size() - 1 : batch.size();
+			this.batches++;
+			if (batch.size() > this.maxBatchSize)
+				this.maxBatchSize = batch.size();
+			for (Command c : batch)
+				this.complete(c);
+			batch.clear();
+			if (stop) {
+				this.snapshot = new Snapshot(this.tree.keysToArray(), this.tree.infoToArray());
+				this.stopped = true;
+				this.failQueued();	// submitted concurrently with close
+				return;
+			}
+		}
+	}
+
+	private void failQueued() {	// fails every queued command, on the writer after it stopped or on a client that queued too late
+		for (Command c = this.queue.poll(); c != null; c = this.queue.poll()) {
+			c.error = new IllegalStateException("tree is closed");
+			this.complete(c);
+		}
+	}
+
+	private void complete(Command c) {	// a task per future: a stage of one may wait for another without holding it up
+		try {
+			this.completions.execute(c::complete);
+		} catch (RejectedExecutionException e) {	// e.g. the executor was shut down: complete here rather than never
+			c.complete();
+		}
+	}
+
+	private static class Command {
+		final int type;
+		final int key;
+		final String info;
+		final long enqueuedNanos = System.nanoTime();
+		final CompletableFuture<Object> future = new CompletableFuture<>();
+		Object result;	// set by the writer before the command is handed to the executor
+		RuntimeException error;
+
+		Command(int type, int key, String info) {
+			this.type = type;
+			this.key = key;
+			this.info = info;
+		}
+
+		void complete() {
+			if (this.error != null)
+				this.future.completeExceptionally(this.error);
+			else
+				this.future.complete(this.result);
+		}
+	}
+
+	private static class Snapshot {	// immutable sorted copy of the tree
+		final int[] keys;
+		final String[] info;
+
+		Snapshot(int[] keys, String[] info) {
+			this.keys = keys;
+			this.info = info;
+		}
+	}
+}
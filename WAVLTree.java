@@ -0,0 +1,541 @@
+package src;
+
+import src.AVLTree.IAVLNode;
+
+/**
+ *
+ * WAVLTree
+ *
+ * A weak AVL (rank-balanced) tree with distinct integer keys and info,
+ * with the same API as AVLTree (both implement IAVLTree). Every node has a rank, and the rank difference
+ * between a node and each child is 1 or 2 (leaves have rank 0, external nodes -1).
+ * With insertions only it is exactly an AVL tree, but a deletion does at most
+ * two rotations, and O(1) amortized re-balancing operations.
+ *
+ * insert and delete record the search path while descending, then fix ranks and
+ * subtree sizes in one climb along it, so no parent pointers are followed.
+ *
+ */
+
+public class WAVLTree implements IAVLTree<WAVLTree> {
+
+	private static final int MAX_DEPTH = 64;	// rank <= 2log(n), and n < 2^31
+
+	private static final WAVLNode EXTERNAL = new WAVLNode(-1, null, -1, false);	// shared by all leaves of all trees
+
+	private WAVLNode root = EXTERNAL;
+	private final WAVLNode[] path = new WAVLNode[MAX_DEPTH];	// scratch stack of the last search path of an update. Reads use their own, so they may run concurrently
+	private long rotations;
+
+	/**
+	 * public boolean empty()
+	 * <p>
+	 * Returns true if and only if the tree is empty.
+	 */
+	public boolean empty() {
+		return !this.root.isReal;
+	}
+
+	/**
+	 * public String search(int k)
+	 * <p>
+	 * Returns the info of an item with key k if it exists in the tree,
+	 * otherwise, returns null.
+	 */
+	public String search(int k) {
+		WAVLNode x = this.root;
+		while (x.isReal) {
+			if (k < x.key)
+				x = x.left;
+			else if (k > x.key)
+				x = x.right;
+			else
+				return x.value;
+		}
+		return null;
+	}
+
+	/**
+	 * public int insert(int k, String i)
+	 * <p>
+	 * Inserts an item with key k and info i to the tree.
+	 * Returns the number of re-balancing operations (a promotion/rotation counts as one,
+	 * double-rotation as 2), or -1 if an item with key k already exists in the tree.
+	 */
+	public int insert(int k, String i) {
+		int d = 0;
+		WAVLNode x = this.root;
+		while (x.isReal) {	// descend and record the path
+			this.path[d++] = x;
+			if (k < x.key)
+				x = x.left;
+			else if (k > x.key)
+				x = x.right;
+			else
+				return -1;
+		}
+		WAVLNode son = this.newNode(k, i, 0);
+		if (d == 0) {	// empty tree
+			this.root = son;
+			return 0;
+		}
+		WAVLNode parent = this.path[d - 1];
+		son.parent = parent;
+		if (k < parent.key)
+			parent.left = son;
+		else
+			parent.right = son;
+		return this.insertRebalance(son, d - 1, 1);
+	}
+
+	/**
+	 * public int delete(int k)
+	 * <p>
+	 * Deletes an item with key k from the tree, if it is there.
+	 * Returns the number of re-balancing operations (a demotion/rotation counts as one,
+	 * double-rotation as 2), or -1 if an item with key k was not found in the tree.
+	 */
+	public int delete(int k) {
+		int d = 0;
+		WAVLNode x = this.root;
+		while (x.isReal && x.key != k) {	// descend and record the path
+			this.path[d++] = x;
+			x = k < x.key ? x.left : x.right;
+		}
+		if (!x.isReal)
+			return -1;
+		if (x.left.isReal && x.right.isReal) {	// binary node - take the place of its successor, and remove the successor
+			this.path[d++] = x;
+			WAVLNode successor = x.right;
+			while (successor.left.isReal) {
+				this.path[d++] = successor;
+				successor = successor.left;
+			}
+			x.key = successor.key;
+			x.value = successor.value;
+			x = successor;
+		}
+		WAVLNode son = x.left.isReal ? x.left : x.right;	// x has at most one real son
+		WAVLNode parent = d == 0 ? null : this.path[d - 1];
+		this.replace(parent, x, son);
+		return this.deleteRebalance(son, d - 1);
+	}
+
+	/**
+	 * public int size()
+	 * <p>
+	 * Returns the number of nodes in the tree.
+	 */
+	public int size() {
+		return this.root.size;
+	}
+
+	/**
+	 * public IAVLNode getRoot()
+	 * <p>
+	 * Returns the root node, or an external node if the tree is empty.
+	 * getHeight() of a node returns its rank, which bounds its height.
+	 */
+	public IAVLNode getRoot() {
+		return this.root;
+	}
+
+	/**
+	 * public long getRotationCount()
+	 * <p>
+	 * Returns the number of single rotations done by this tree so far (a double-rotation counts as 2).
+	 */
+	public long getRotationCount() {
+		return this.rotations;
+	}
+
+	/**
+	 * public String min()
+	 * <p>
+	 * Returns the info of the item with the smallest key in the tree,
+	 * or null if the tree is empty.
+	 */
+	public String min() {
+		return this.root.getMin().getValue();
+	}
+
+	/**
+	 * public String max()
+	 * <p>
+	 * Returns the info of the item with the largest key in the tree,
+	 * or null if the tree is empty.
+	 */
+	public String max() {
+		return this.root.getMax().getValue();
+	}
+
+	/**
+	 * public int[] keysToArray()
+	 * <p>
+	 * Returns a sorted array which contains all keys in the tree,
+	 * or an empty array if the tree is empty.
+	 */
+	public int[] keysToArray() {
+		int[] keys = new int[this.size()];
+		int i = 0;
+		int d = 0;
+		WAVLNode[] stack = new WAVLNode[MAX_DEPTH];
+		WAVLNode x = this.root;
+		while (x.isReal || d > 0) {	// in-order walk with a stack of the ancestors still to visit
+			if (x.isReal) {
+				stack[d++] = x;
+				x = x.left;
+			} else {
+				x = stack[--d];
+				keys[i++] = x.key;
+				x = x.right;
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * public String[] infoToArray()
+	 * <p>
+	 * Returns an array which contains all info in the tree,
+	 * sorted by their respective keys,
+	 * or an empty array if the tree is empty.
+	 */
+	public String[] infoToArray() {
+		String[] values = new String[this.size()];
+		int i = 0;
+		int d = 0;
+		WAVLNode[] stack = new WAVLNode[MAX_DEPTH];
+		WAVLNode x = this.root;
+		while (x.isReal || d > 0) {
+			if (x.isReal) {
+				stack[d++] = x;
+				x = x.left;
+			} else {
+				x = stack[--d];
+				values[i++] = x.value;
+				x = x.right;
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * public WAVLTree[] split(int x)
+	 * <p>
+	 * splits the tree into 2 trees according to the key x.
+	 * Returns an array [t1, t2] with two WAVL trees. keys(t1) < x < keys(t2).
+	 * The nodes move to t1 and t2, and the tree is left empty.
+	 * <p>
+	 * precondition: search(x) != null
+	 */
+	public WAVLTree[] split(int x) {
+		int d = 0;
+		WAVLNode node = this.root;
+		while (node.key != x) {	// record the path to x, it is reused as the join order
+			this.path[d++] = node;
+			node = x < node.key ? node.left : node.right;
+		}
+		WAVLTree t1 = this.subtree(node.left);
+		WAVLTree t2 = this.subtree(node.right);
+		for (int i = d - 1; i >= 0; i--) {	// climb from x to the root, joining every ancestor into t1 or t2
+			WAVLNode y = this.path[i];	// joins below use the path stacks of t1 and t2
+			if (y.key > x)
+				t2.join(y, t2, this.subtree(y.right));
+			else
+				t1.join(y, this.subtree(y.left), t1);
+		}
+		this.root = EXTERNAL;
+		return new WAVLTree[] { t1, t2 };
+	}
+
+	/**
+	 * public int join(IAVLNode x, WAVLTree t)
+	 * <p>
+	 * joins t and x with the tree. t is emptied.
+	 * Returns the complexity of the operation (|tree.rank - t.rank| + 1).
+	 * <p>
+	 * precondition: keys(t) < x < keys() or keys(t) > x > keys().
+	 */
+	public int join(IAVLNode x, WAVLTree t) {
+		WAVLNode node = this.newNode(x.getKey(), x.getValue(), 0);
+		boolean tIsSmaller = t.empty() ? !this.empty() && this.root.key > x.getKey() : t.root.key < x.getKey();
+		if (tIsSmaller)
+			return this.join(node, t, this);
+		return this.join(node, this, t);
+	}
+
+	private int join(WAVLNode x, WAVLTree t1, WAVLTree t2) {	// precondition: keys(t1) < x < keys(t2). Result is stored in this
+		WAVLNode r1 = t1.root;
+		WAVLNode r2 = t2.root;
+		t1.root = EXTERNAL;
+		t2.root = EXTERNAL;
+		int ret = Math.abs(r1.rank - r2.rank) + 1;
+		boolean leftIsTaller = r1.rank > r2.rank;
+		WAVLNode small = leftIsTaller ? r2 : r1;
+		int d = 0;
+		WAVLNode r = leftIsTaller ? r1 : r2;
+		while (r.rank > small.rank) {	// descend the inner spine of the taller tree to rank <= rank(small)
+			this.path[d++] = r;
+			r = leftIsTaller ? r.right : r.left;
+		}
+		x.left = leftIsTaller ? r : small;
+		x.right = leftIsTaller ? small : r;
+		x.parent = null;
+		x.left.setParent(x);
+		x.right.setParent(x);
+		x.rank = small.rank + 1;
+		x.size = x.left.size + x.right.size + 1;
+		if (d == 0) {	// same rank - x is the new root
+			this.root = x;
+			return ret;
+		}
+		WAVLNode parent = this.path[d - 1];
+		x.parent = parent;
+		if (leftIsTaller)
+			parent.right = x;
+		else
+			parent.left = x;
+		this.root = this.path[0];
+		this.insertRebalance(x, d - 1, x.size - r.size);
+		return ret;
+	}
+
+	private int insertRebalance(WAVLNode x, int d, int delta) {	// climb path[d..0] from x, whose subtree grew by delta nodes
+		int cnt = 0;
+		while (d >= 0) {
+			WAVLNode y = this.path[d];
+			if (y.rank != x.rank)	// x is not a 0-child - ranks are valid
+				break;
+			WAVLNode z = y.left == x ? y.right : y.left;
+			if (y.rank - z.rank == 1) {	// y is 0,1 - promote and continue up
+				y.rank++;
+				y.size += delta;
+				cnt++;
+				x = y;
+				d--;
+				continue;
+			}
+			WAVLNode g = d == 0 ? null : this.path[d - 1];	// y is 0,2 - rotate
+			WAVLNode inner = y.left == x ? x.right : x.left;
+			WAVLNode outer = y.left == x ? x.left : x.right;
+			if (x.rank - outer.rank == 1 && x.rank - inner.rank == 2) {	// single rotation
+				this.rotateUp(x, y, g);
+				y.rank--;
+				cnt++;
+			} else if (x.rank - inner.rank == 1 && x.rank - outer.rank == 2) {	// double rotation
+				this.rotateUp(inner, x, y);
+				this.rotateUp(inner, y, g);
+				inner.rank++;
+				x.rank--;
+				y.rank--;
+				cnt += 2;
+			} else {	// x is 1,1 (only after join) - rotate, promote x, and continue up from its new place
+				this.rotateUp(x, y, g);
+				x.rank++;
+				cnt++;
+				d--;
+				continue;
+			}
+			d--;
+			break;
+		}
+		for (; d >= 0; d--)	// rest of the path only changes size
+			this.path[d].size += delta;
+		return cnt;
+	}
+
+	private int deleteRebalance(WAVLNode x, int d) {	// climb path[d..0] from x, whose subtree lost one node
+		int cnt = 0;
+		if (d >= 0) {
+			WAVLNode y = this.path[d];
+			if (!y.left.isReal && !y.right.isReal && y.rank == 1) {	// y became a 2,2 leaf - demote
+				y.rank = 0;
+				y.size--;
+				cnt++;
+				x = y;
+				d--;
+			}
+		}
+		while (d >= 0) {
+			WAVLNode y = this.path[d];
+			if (y.rank - x.rank != 3)	// x is not a 3-child - ranks are valid
+				break;
+			WAVLNode z = y.left == x ? y.right : y.left;
+			if (y.rank - z.rank == 2) {	// sibling is a 2-child - demote y and continue up
+				y.rank--;
+				y.size--;
+				cnt++;
+				x = y;
+				d--;
+				continue;
+			}
+			if (z.rank - z.left.rank == 2 && z.rank - z.right.rank == 2) {	// sibling is 2,2 - demote both and continue up
+				y.rank--;
+				z.rank--;
+				y.size--;
+				cnt += 2;
+				x = y;
+				d--;
+				continue;
+			}
+			WAVLNode g = d == 0 ? null : this.path[d - 1];	// rotate
+			WAVLNode inner = y.left == x ? z.left : z.right;
+			WAVLNode outer = y.left == x ? z.right : z.left;
+			if (z.rank - outer.rank == 1) {	// single rotation
+				this.rotateUp(z, y, g);
+				z.rank++;
+				y.rank--;
+				if (!y.left.isReal && !y.right.isReal)	// y is a 2,2 leaf
+					y.rank--;
+				cnt++;
+			} else {	// double rotation
+				this.rotateUp(inner, z, y);
+				this.rotateUp(inner, y, g);
+				inner.rank += 2;
+				z.rank--;
+				y.rank -= 2;
+				cnt += 2;
+			}
+			d--;
+			break;
+		}
+		for (; d >= 0; d--)	// rest of the path only changes size
+			this.path[d].size--;
+		return cnt;
+	}
+
+	private void rotateUp(WAVLNode x, WAVLNode y, WAVLNode g) {	// rotate x above its parent y, whose parent is g (null if y is the root)
+		if (y.left == x) {
+			y.left = x.right;
+			y.left.setParent(y);
+			x.right = y;
+		} else {
+			y.right = x.left;
+			y.right.setParent(y);
+			x.left = y;
+		}
+		y.parent = x;
+		this.replace(g, y, x);
+		y.size = y.left.size + y.right.size + 1;	// correct the sizes
+		x.size = x.left.size + x.right.size + 1;
+		this.rotations++;
+	}
+
+	private void replace(WAVLNode parent, WAVLNode old, WAVLNode son) {	// put son where old was under parent (or as the root)
+		son.setParent(parent);
+		if (parent == null)
+			this.root = son;
+		else if (parent.left == old)
+			parent.left = son;
+		else
+			parent.right = son;
+	}
+
+	private WAVLTree subtree(WAVLNode x) {	// detach x and wrap it as a tree
+		WAVLTree t = new WAVLTree();
+		t.root = x;
+		x.setParent(null);
+		return t;
+	}
+
+	private WAVLNode newNode(int k, String i, int rank) {
+		WAVLNode x = new WAVLNode(k, i, rank, true);
+		x.left = EXTERNAL;
+		x.right = EXTERNAL;
+		x.size = 1;
+		return x;
+	}
+
+	/**
+	 * public class WAVLNode
+	 * <p>
+	 * A node of a WAVLTree. Min and max are not cached - they are found by walking the tree.
+	 * The external node is shared by all trees, so it cannot be changed: its parent is always null,
+	 * setParent ignores it, and the other setters throw UnsupportedOperationException.
+	 */
+	public static class WAVLNode implements IAVLNode {
+
+		private int key;
+		private String value;
+		private WAVLNode left;
+		private WAVLNode right;
+		private WAVLNode parent;
+		private int rank;
+		private int size;
+		private final boolean isReal;
+
+		private WAVLNode(int key, String value, int rank, boolean isReal) {
+			this.key = key;
+			this.value = value;
+			this.rank = rank;
+			this.isReal = isReal;
+		}
+
+		public int getKey() {
+			return this.key;
+		}
+		public String getValue() {
+			return this.value;
+		}
+		public void setLeft(IAVLNode node) {
+			this.checkReal();
+			this.left = (WAVLNode) node;
+		}
+		public IAVLNode getLeft() {
+			return this.left;
+		}
+		public void setRight(IAVLNode node) {
+			this.checkReal();
+			this.right = (WAVLNode) node;
+		}
+		public IAVLNode getRight() {
+			return this.right;
+		}
+		public void setParent(IAVLNode node) {
+			if (this.isReal)
+				this.parent = (WAVLNode) node;
+		}
+		public IAVLNode getParent() {
+			return this.parent;
+		}
+		public boolean isRealNode() {
+			return this.isReal;
+		}
+		public void setHeight(int height) {
+			this.checkReal();
+			this.rank = height;
+		}
+		public int getHeight() {	// the rank of the node
+			return this.rank;
+		}
+		public int getSize() {
+			return this.size;
+		}
+		public void setSize(int size) {
+			this.checkReal();
+			this.size = size;
+		}
+		public IAVLNode getMax() {
+			WAVLNode x = this;
+			while (x.isReal && x.right.isReal)
+				x = x.right;
+			return x;
+		}
+		public IAVLNode getMin() {
+			WAVLNode x = this;
+			while (x.isReal && x.left.isReal)
+				x = x.left;
+			return x;
+		}
+		public void updateMin() {	// min is not cached
+		}
+		public void updateMax() {	// max is not cached
+		}
+
+		private void checkReal() {
+			if (!this.isReal)
+				throw new UnsupportedOperationException("the external node is shared by all WAVL trees");
+		}
+	}
+}